@@ -0,0 +1,70 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Title: ClassHierarchy </p>
+ * <p>Description: Keeps for every class the stored classes assignable to it,
+ * and for every stored class its super classes. It is updated as new
+ * entry classes are written, so matching a sub-class is a single lookup.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class ClassHierarchy {
+
+  private static final Class[] NO_CLASSES = new Class[0];
+
+  /** Maping from a class to all stored classes assignable to it,
+   * the class itself first if stored. Arrays are replaced, never changed. */
+  private final ConcurrentHashMap subClasses = new ConcurrentHashMap();
+
+  /** Maping from a stored class to its super classes up to Object,
+   * itself first */
+  private final ConcurrentHashMap superClasses = new ConcurrentHashMap();
+
+  /** Adds the class of a written entry, if not known yet. Returns true if
+   * the class was added by this call. */
+  public boolean addClass(Class cls) {
+    if (superClasses.containsKey(cls)) {
+      return false;
+    }
+    synchronized (this) {
+      if (superClasses.containsKey(cls)) {
+        return false;
+      }
+      List supers = new ArrayList();
+      for (Class c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+        supers.add(c);
+        Class[] old = (Class[]) subClasses.get(c);
+        if (old == null) {
+          old = NO_CLASSES;
+        }
+        Class[] updated = new Class[old.length + 1];
+        // the class itself comes first, other sub-classes by arrival
+        if (c == cls) {
+          updated[0] = cls;
+          System.arraycopy(old, 0, updated, 1, old.length);
+        }
+        else {
+          System.arraycopy(old, 0, updated, 0, old.length);
+          updated[old.length] = cls;
+        }
+        subClasses.put(c, updated);
+      }
+      superClasses.put(cls, (Class[]) supers.toArray(NO_CLASSES));
+    }
+    return true;
+  }
+
+  /** Returns the stored classes assignable to the given class, the class
+   * itself first. The array must not be changed. */
+  public Class[] getSubClasses(Class cls) {
+    Class[] classes = (Class[]) subClasses.get(cls);
+    return classes == null ? NO_CLASSES : classes;
+  }
+
+  /** Returns the super classes of a stored class up to Object, the class
+   * itself first. The array must not be changed. */
+  public Class[] getSuperClasses(Class cls) {
+    Class[] classes = (Class[]) superClasses.get(cls);
+    return classes == null ? NO_CLASSES : classes;
+  }
+}
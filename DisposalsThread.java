@@ -24,6 +24,19 @@ public class DisposalsThread
     }
   }
 
+  /** Adds a batch of objects to be disposed to this cache, then this thread is notified. */
+  public void addObjs(List objs) {
+    synchronized (objectsCache) {
+      objectsCache.addAll(objs);
+      objectsCache.notify();
+    }
+  }
+
+  /** Returns the number of objects waiting to be disposed */
+  public int getWaitingNo() {
+    return objectsCache.size();
+  }
+
   /** Every time it is notified , go over the cache and dispose the objects. */
   public void run() {
     List tempObjects;
@@ -0,0 +1,647 @@
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Title: EntryCodec </p>
+ * <p>Description: A compact binary layout of the entries of a class, derived
+ * from its public fields. Primitive fields are written unboxed, and common
+ * value types with a one byte tag; other values fall back to serialization.
+ * When the public fields are the whole state of an entry, as for the entries
+ * of JavaSpaces, the entry can be rebuilt from the field values, so the
+ * space keeps the values only.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class EntryCodec {
+
+  /** All the codecs created so far, by class */
+  private static final ConcurrentHashMap codecs = new ConcurrentHashMap();
+
+  /** Arguments of the no-args constructor */
+  private static final Object[] NO_ARGS = new Object[0];
+
+  /** Tags of the values of non primitive fields */
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte INTEGER = 2;
+  private static final byte LONG = 3;
+  private static final byte BOOLEAN = 4;
+  private static final byte DOUBLE = 5;
+  private static final byte FLOAT = 6;
+  private static final byte SHORT = 7;
+  private static final byte BYTE = 8;
+  private static final byte CHARACTER = 9;
+  private static final byte SERIAL = 10;
+
+  /** The public fields of the class */
+  private final EntrySchema schema;
+
+  /** Indexes in the schema of the non static fields, the state of an entry.
+   * They are sorted by name, so the layout doesn't depend on the order
+   * reflection returns the fields in. */
+  private final int[] state;
+
+  /** The type of every state field if primitive, null otherwise */
+  private final Class[] primitives;
+
+  /** Position in state of every public field, -1 for a static one */
+  private final int[] slots;
+
+  /** The public no-args constructor, null if the entries can't be rebuilt
+   * from their public fields */
+  private final Constructor constructor;
+
+  /** Hash of the names and types of the state fields, a log written
+   * with another layout of the class can't be read */
+  private final int signature;
+
+  private EntryCodec(Class cls) {
+    this.schema = EntrySchema.forClass(cls);
+    final Field[] fields = schema.getFields();
+    List indexes = new ArrayList();
+    for (int i = 0; i < fields.length; i++) {
+      if (!Modifier.isStatic(fields[i].getModifiers())) {
+        indexes.add(Integer.valueOf(i));
+      }
+    }
+    Collections.sort(indexes, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        Field f1 = fields[ ( (Integer) o1).intValue()];
+        Field f2 = fields[ ( (Integer) o2).intValue()];
+        int c = f1.getName().compareTo(f2.getName());
+        // a hidden field comes with the one hiding it
+        return c != 0 ? c : f1.getDeclaringClass().getName().compareTo(
+            f2.getDeclaringClass().getName());
+      }
+    });
+    this.state = new int[indexes.size()];
+    this.primitives = new Class[state.length];
+    this.slots = new int[fields.length];
+    Arrays.fill(slots, -1);
+    int hash = 1;
+    boolean settable = true;
+    for (int n = 0; n < state.length; n++) {
+      state[n] = ( (Integer) indexes.get(n)).intValue();
+      slots[state[n]] = n;
+      Field field = fields[state[n]];
+      Class type = field.getType();
+      primitives[n] = type.isPrimitive() ? type : null;
+      hash = 31 * hash + field.getName().hashCode();
+      hash = 31 * hash + type.getName().hashCode();
+      settable = settable && !Modifier.isFinal(field.getModifiers());
+    }
+    this.signature = hash;
+    Constructor c = null;
+    if (settable && hasPublicState(cls)) {
+      try {
+        c = cls.getConstructor(new Class[0]);
+        try {
+          c.setAccessible(true);
+        }
+        catch (RuntimeException ex) {}
+      }
+      catch (NoSuchMethodException ex) {}
+    }
+    this.constructor = c;
+  }
+
+  /** Returns the codec of the given class, creating it on first use */
+  public static EntryCodec forClass(Class cls) {
+    EntryCodec codec = (EntryCodec) codecs.get(cls);
+    if (codec == null) {
+      codec = new EntryCodec(cls);
+      EntryCodec other = (EntryCodec) codecs.putIfAbsent(cls, codec);
+      if (other != null) {
+        codec = other;
+      }
+    }
+    return codec;
+  }
+
+  /** Returns true if all the instance fields of the class and its super
+   * classes are public, or transient */
+  private static boolean hasPublicState(Class cls) {
+    if (Modifier.isAbstract(cls.getModifiers())) {
+      return false;
+    }
+    for (Class c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+      Field[] declared = c.getDeclaredFields();
+      for (int i = 0; i < declared.length; i++) {
+        int modifiers = declared[i].getModifiers();
+        if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) &&
+            !Modifier.isPublic(modifiers)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Returns true if the entries can be rebuilt from their public fields */
+  public boolean isCodable() {
+    return constructor != null;
+  }
+
+  public int getSignature() {
+    return signature;
+  }
+
+  /** Creates an entry with the given values of the public fields, in the
+   * schema order. Returns null if it can't be created. */
+  public Entry newEntry(Object[] values) {
+    Field[] fields = schema.getFields();
+    try {
+      Entry e = (Entry) constructor.newInstance(NO_ARGS);
+      for (int i = 0; i < state.length; i++) {
+        Object value = values[state[i]];
+        if (value != null || primitives[i] == null) {
+          fields[state[i]].set(e, value);
+        }
+      }
+      return e;
+    }
+    catch (Exception ex) {
+      System.out.println("Error creating entry " + ex.toString());
+      ex.printStackTrace();
+      return null;
+    }
+  }
+
+  /** Writes the values of the state fields, given in the schema order */
+  public void write(Object[] values, DataOutput out) throws IOException {
+    for (int i = 0; i < state.length; i++) {
+      Object value = values[state[i]];
+      Class type = primitives[i];
+      if (type == null) {
+        writeValue(value, out);
+      }
+      else if (type == Integer.TYPE) {
+        out.writeInt( ( (Integer) value).intValue());
+      }
+      else if (type == Long.TYPE) {
+        out.writeLong( ( (Long) value).longValue());
+      }
+      else if (type == Boolean.TYPE) {
+        out.writeBoolean( ( (Boolean) value).booleanValue());
+      }
+      else if (type == Double.TYPE) {
+        out.writeDouble( ( (Double) value).doubleValue());
+      }
+      else if (type == Float.TYPE) {
+        out.writeFloat( ( (Float) value).floatValue());
+      }
+      else if (type == Short.TYPE) {
+        out.writeShort( ( (Short) value).shortValue());
+      }
+      else if (type == Byte.TYPE) {
+        out.writeByte( ( (Byte) value).byteValue());
+      }
+      else {
+        out.writeChar( ( (Character) value).charValue());
+      }
+    }
+  }
+
+  /** Reads the values written by write, and returns the values of all the
+   * public fields in the schema order. Static fields get their current values. */
+  public Object[] read(ByteBuffer in) throws IOException {
+    Field[] fields = schema.getFields();
+    Object[] values = new Object[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      if (!Modifier.isStatic(fields[i].getModifiers())) {
+        continue;
+      }
+      try {
+        values[i] = fields[i].get(null);
+      }
+      catch (IllegalAccessException ex) {}
+    }
+    for (int i = 0; i < state.length; i++) {
+      Class type = primitives[i];
+      Object value;
+      if (type == null) {
+        value = readValue(in);
+      }
+      else if (type == Integer.TYPE) {
+        value = Integer.valueOf(in.getInt());
+      }
+      else if (type == Long.TYPE) {
+        value = Long.valueOf(in.getLong());
+      }
+      else if (type == Boolean.TYPE) {
+        value = Boolean.valueOf(in.get() != 0);
+      }
+      else if (type == Double.TYPE) {
+        value = Double.valueOf(in.getDouble());
+      }
+      else if (type == Float.TYPE) {
+        value = Float.valueOf(in.getFloat());
+      }
+      else if (type == Short.TYPE) {
+        value = Short.valueOf(in.getShort());
+      }
+      else if (type == Byte.TYPE) {
+        value = Byte.valueOf(in.get());
+      }
+      else {
+        value = Character.valueOf(in.getChar());
+      }
+      values[state[i]] = value;
+    }
+    return values;
+  }
+
+  /** Returns true if some of the values, given in the schema order, are
+   * written serialized */
+  public boolean hasSerialized(Object[] values) {
+    for (int i = 0; i < state.length; i++) {
+      Object value = values[state[i]];
+      if (primitives[i] == null && value != null &&
+          tagOf(value.getClass()) == SERIAL) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns true if the values written by write at the given position of
+   * the buffer match a template: every non null value of the template is
+   * equal to the value of its field, and the value of every range field is
+   * in its range. The values are compared in place with absolute gets, only
+   * the values of range fields are decoded. Serialized values never match. */
+  public boolean matches(ByteBuffer in, int position, EntrySchema template,
+                         Object[] templateValues, Field[] rangeFields,
+                         Range[] ranges) throws IOException {
+    Field[] fields = schema.getFields();
+    boolean sameSchema = template == schema;
+    Field[] templateFields = template.getFields();
+    for (int i = 0; i < templateFields.length; i++) {
+      if (templateValues[i] == null) {
+        continue;
+      }
+      int index = sameSchema ? i : schema.indexOf(templateFields[i]);
+      if (index < 0) {
+        return false;
+      }
+      if (slots[index] < 0 &&
+          !templateValues[i].equals(staticValue(fields[index]))) {
+        return false;
+      }
+    }
+    int p = position;
+    for (int n = 0; n < state.length; n++) {
+      int index = sameSchema ? state[n] : template.indexOf(fields[state[n]]);
+      Object value = index < 0 ? null : templateValues[index];
+      if (value != null && !equalsAt(in, p, n, value)) {
+        return false;
+      }
+      p = skip(in, p, n);
+    }
+    if (ranges != null) {
+      for (int i = 0; i < ranges.length; i++) {
+        int index = schema.indexOf(rangeFields[i]);
+        Object value = null;
+        if (index >= 0) {
+          value = slots[index] < 0 ? staticValue(fields[index]) :
+              valueAt(in, position, slots[index]);
+        }
+        if (!ranges[i].contains(value)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Returns true if the value of state field n, written at the position,
+   * is equal to the given value */
+  private boolean equalsAt(ByteBuffer in, int p, int n, Object value) {
+    Class type = primitives[n];
+    Class c = value.getClass();
+    if (type == Integer.TYPE) {
+      return c == Integer.class &&
+          in.getInt(p) == ( (Integer) value).intValue();
+    }
+    if (type == Long.TYPE) {
+      return c == Long.class && in.getLong(p) == ( (Long) value).longValue();
+    }
+    if (type == Boolean.TYPE) {
+      return c == Boolean.class &&
+          (in.get(p) != 0) == ( (Boolean) value).booleanValue();
+    }
+    if (type == Double.TYPE) {
+      // written as doubleToLongBits, the bits equals compares
+      return c == Double.class && in.getLong(p) ==
+          Double.doubleToLongBits( ( (Double) value).doubleValue());
+    }
+    if (type == Float.TYPE) {
+      return c == Float.class && in.getInt(p) ==
+          Float.floatToIntBits( ( (Float) value).floatValue());
+    }
+    if (type == Short.TYPE) {
+      return c == Short.class &&
+          in.getShort(p) == ( (Short) value).shortValue();
+    }
+    if (type == Byte.TYPE) {
+      return c == Byte.class && in.get(p) == ( (Byte) value).byteValue();
+    }
+    if (type == Character.TYPE) {
+      return c == Character.class &&
+          in.getChar(p) == ( (Character) value).charValue();
+    }
+    byte tag = in.get(p);
+    if (tag != tagOf(c) || tag == SERIAL) {
+      return false;
+    }
+    switch (tag) {
+      case STRING:
+        return utf8Equals(in, p + 5, in.getInt(p + 1), (String) value);
+      case INTEGER:
+        return in.getInt(p + 1) == ( (Integer) value).intValue();
+      case LONG:
+        return in.getLong(p + 1) == ( (Long) value).longValue();
+      case BOOLEAN:
+        return (in.get(p + 1) != 0) == ( (Boolean) value).booleanValue();
+      case DOUBLE:
+        return in.getLong(p + 1) ==
+            Double.doubleToLongBits( ( (Double) value).doubleValue());
+      case FLOAT:
+        return in.getInt(p + 1) ==
+            Float.floatToIntBits( ( (Float) value).floatValue());
+      case SHORT:
+        return in.getShort(p + 1) == ( (Short) value).shortValue();
+      case BYTE:
+        return in.get(p + 1) == ( (Byte) value).byteValue();
+      default:
+        return in.getChar(p + 1) == ( (Character) value).charValue();
+    }
+  }
+
+  /** Returns the position after the value of state field n, written at p */
+  private int skip(ByteBuffer in, int p, int n) throws IOException {
+    Class type = primitives[n];
+    if (type == Long.TYPE || type == Double.TYPE) {
+      return p + 8;
+    }
+    if (type == Integer.TYPE || type == Float.TYPE) {
+      return p + 4;
+    }
+    if (type == Short.TYPE || type == Character.TYPE) {
+      return p + 2;
+    }
+    if (type != null) {
+      return p + 1;
+    }
+    byte tag = in.get(p);
+    switch (tag) {
+      case NULL:
+        return p + 1;
+      case STRING:
+      case SERIAL:
+        return p + 5 + in.getInt(p + 1);
+      case LONG:
+      case DOUBLE:
+        return p + 9;
+      case INTEGER:
+      case FLOAT:
+        return p + 5;
+      case SHORT:
+      case CHARACTER:
+        return p + 3;
+      case BOOLEAN:
+      case BYTE:
+        return p + 2;
+      default:
+        throw new IOException("Unknown value tag " + tag);
+    }
+  }
+
+  /** Decodes the value of state field n, the values are written at the
+   * position */
+  private Object valueAt(ByteBuffer in, int position, int n) throws
+      IOException {
+    int p = position;
+    for (int i = 0; i < n; i++) {
+      p = skip(in, p, i);
+    }
+    ByteBuffer b = in.duplicate();
+    b.position(p);
+    Class type = primitives[n];
+    if (type == null) {
+      return readValue(b);
+    }
+    if (type == Integer.TYPE) {
+      return Integer.valueOf(b.getInt());
+    }
+    if (type == Long.TYPE) {
+      return Long.valueOf(b.getLong());
+    }
+    if (type == Boolean.TYPE) {
+      return Boolean.valueOf(b.get() != 0);
+    }
+    if (type == Double.TYPE) {
+      return Double.valueOf(b.getDouble());
+    }
+    if (type == Float.TYPE) {
+      return Float.valueOf(b.getFloat());
+    }
+    if (type == Short.TYPE) {
+      return Short.valueOf(b.getShort());
+    }
+    if (type == Byte.TYPE) {
+      return Byte.valueOf(b.get());
+    }
+    return Character.valueOf(b.getChar());
+  }
+
+  /** Returns the current value of a static field, as read does */
+  private static Object staticValue(Field field) {
+    try {
+      return field.get(null);
+    }
+    catch (IllegalAccessException ex) {
+      return null;
+    }
+  }
+
+  /** Returns the tag writeValue writes a value of the given class with */
+  private static byte tagOf(Class c) {
+    if (c == String.class) {
+      return STRING;
+    }
+    if (c == Integer.class) {
+      return INTEGER;
+    }
+    if (c == Long.class) {
+      return LONG;
+    }
+    if (c == Boolean.class) {
+      return BOOLEAN;
+    }
+    if (c == Double.class) {
+      return DOUBLE;
+    }
+    if (c == Float.class) {
+      return FLOAT;
+    }
+    if (c == Short.class) {
+      return SHORT;
+    }
+    if (c == Byte.class) {
+      return BYTE;
+    }
+    if (c == Character.class) {
+      return CHARACTER;
+    }
+    return SERIAL;
+  }
+
+  /** Returns true if the length UTF-8 bytes at the position, written by
+   * writeString, are the bytes of the given string */
+  private static boolean utf8Equals(ByteBuffer in, int p, int length,
+                                    String s) {
+    int chars = s.length();
+    // a char takes 1 to 3 bytes, a surrogate pair 4
+    if (length < chars || length > 3 * chars) {
+      return false;
+    }
+    int end = p + length;
+    int i = 0;
+    while (p < end) {
+      int b = in.get(p++) & 0xff;
+      int c;
+      if (b < 0x80) {
+        c = b;
+      }
+      else if (b < 0xe0) {
+        c = (b & 0x1f) << 6 | (in.get(p++) & 0x3f);
+      }
+      else if (b < 0xf0) {
+        c = (b & 0x0f) << 12 | (in.get(p++) & 0x3f) << 6 |
+            (in.get(p++) & 0x3f);
+      }
+      else {
+        int code = (b & 0x07) << 18 | (in.get(p++) & 0x3f) << 12 |
+            (in.get(p++) & 0x3f) << 6 | (in.get(p++) & 0x3f);
+        if (i >= chars || s.charAt(i++) != Character.highSurrogate(code)) {
+          return false;
+        }
+        c = Character.lowSurrogate(code);
+      }
+      if (i >= chars || s.charAt(i++) != c) {
+        return false;
+      }
+    }
+    return i == chars;
+  }
+
+  /** Writes a value of a non primitive field with its tag */
+  private static void writeValue(Object value, DataOutput out) throws
+      IOException {
+    Class c = value == null ? null : value.getClass();
+    if (c == null) {
+      out.writeByte(NULL);
+    }
+    else if (c == String.class) {
+      out.writeByte(STRING);
+      writeString( (String) value, out);
+    }
+    else if (c == Integer.class) {
+      out.writeByte(INTEGER);
+      out.writeInt( ( (Integer) value).intValue());
+    }
+    else if (c == Long.class) {
+      out.writeByte(LONG);
+      out.writeLong( ( (Long) value).longValue());
+    }
+    else if (c == Boolean.class) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean( ( (Boolean) value).booleanValue());
+    }
+    else if (c == Double.class) {
+      out.writeByte(DOUBLE);
+      out.writeDouble( ( (Double) value).doubleValue());
+    }
+    else if (c == Float.class) {
+      out.writeByte(FLOAT);
+      out.writeFloat( ( (Float) value).floatValue());
+    }
+    else if (c == Short.class) {
+      out.writeByte(SHORT);
+      out.writeShort( ( (Short) value).shortValue());
+    }
+    else if (c == Byte.class) {
+      out.writeByte(BYTE);
+      out.writeByte( ( (Byte) value).byteValue());
+    }
+    else if (c == Character.class) {
+      out.writeByte(CHARACTER);
+      out.writeChar( ( (Character) value).charValue());
+    }
+    else {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream oout = new ObjectOutputStream(bytes);
+      oout.writeObject(value);
+      oout.close();
+      out.writeByte(SERIAL);
+      out.writeInt(bytes.size());
+      out.write(bytes.toByteArray());
+    }
+  }
+
+  /** Reads a value written by writeValue */
+  private static Object readValue(ByteBuffer in) throws IOException {
+    byte tag = in.get();
+    switch (tag) {
+      case NULL:
+        return null;
+      case STRING:
+        return readString(in);
+      case INTEGER:
+        return Integer.valueOf(in.getInt());
+      case LONG:
+        return Long.valueOf(in.getLong());
+      case BOOLEAN:
+        return Boolean.valueOf(in.get() != 0);
+      case DOUBLE:
+        return Double.valueOf(in.getDouble());
+      case FLOAT:
+        return Float.valueOf(in.getFloat());
+      case SHORT:
+        return Short.valueOf(in.getShort());
+      case BYTE:
+        return Byte.valueOf(in.get());
+      case CHARACTER:
+        return Character.valueOf(in.getChar());
+      case SERIAL:
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        try {
+          return new ObjectInputStream(new ByteArrayInputStream(bytes)).
+              readObject();
+        }
+        catch (ClassNotFoundException ex) {
+          throw new IOException(ex.toString());
+        }
+      default:
+        throw new IOException("Unknown value tag " + tag);
+    }
+  }
+
+  /** Writes a string as its length and UTF-8 bytes */
+  static void writeString(String s, DataOutput out) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /** Reads a string written by writeString */
+  static String readString(ByteBuffer in) {
+    byte[] bytes = new byte[in.getInt()];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
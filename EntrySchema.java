@@ -0,0 +1,124 @@
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Title: EntrySchema </p>
+ * <p>Description: The public fields of an entry class. They are looked up
+ * once per class and shared by all the SpaceObjs of that class.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class EntrySchema {
+
+  /** All the schemas created so far, by class */
+  private static final ConcurrentHashMap schemas = new ConcurrentHashMap();
+
+  /** The class of the entries */
+  private final Class cls;
+
+  /** The public fields of the class */
+  private final Field[] fields;
+
+  /** The public fields of the class, as a read only list */
+  private final List fieldList;
+
+  /** The database key of every public field, in fields order, so no key
+   * is created for a write or a lookup */
+  private final FieldKey[] keys;
+
+  /** Maping from a public field to its index in fields */
+  private final Map indexes;
+
+  /** Maping from a name to the public field, the one of the class itself
+   * if it hides another */
+  private final Map byName;
+
+  private EntrySchema(Class cls) {
+    this.cls = cls;
+    this.fields = cls.getFields();
+    this.indexes = new HashMap();
+    this.byName = new HashMap();
+    this.keys = new FieldKey[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      // skip the access check on every get, if allowed
+      try {
+        fields[i].setAccessible(true);
+      }
+      catch (RuntimeException ex) {}
+      indexes.put(fields[i], Integer.valueOf(i));
+      keys[i] = new FieldKey(fields[i]);
+      if (!byName.containsKey(fields[i].getName())) {
+        byName.put(fields[i].getName(), fields[i]);
+      }
+    }
+    this.fieldList = Collections.unmodifiableList(Arrays.asList(fields));
+  }
+
+  /** Returns the schema of the given class, creating it on first use */
+  public static EntrySchema forClass(Class cls) {
+    EntrySchema schema = (EntrySchema) schemas.get(cls);
+    if (schema == null) {
+      schema = new EntrySchema(cls);
+      EntrySchema other = (EntrySchema) schemas.putIfAbsent(cls, schema);
+      if (other != null) {
+        schema = other;
+      }
+    }
+    return schema;
+  }
+
+  /** Reads the values of all public fields of the entry, in fields order */
+  public Object[] getValues(Object entry) throws IllegalAccessException {
+    Object[] values = new Object[fields.length];
+    readValues(entry, values);
+    return values;
+  }
+
+  /** Reads the values of all public fields of the entry into the given
+   * array, in fields order */
+  public void readValues(Object entry, Object[] values) throws
+      IllegalAccessException {
+    for (int i = 0; i < fields.length; i++) {
+      values[i] = fields[i].get(entry);
+    }
+  }
+
+  /** Returns the index of the field, or -1 if it is not a field of the class */
+  public int indexOf(Field field) {
+    Integer index = (Integer) indexes.get(field);
+    return index == null ? -1 : index.intValue();
+  }
+
+  /** Returns the public field of the given name, or null */
+  public Field getField(String name) {
+    return (Field) byName.get(name);
+  }
+
+  public Class getSchemaClass() {
+    return cls;
+  }
+
+  public Field[] getFields() {
+    return fields;
+  }
+
+  /** Returns the database keys of the public fields, in fields order.
+   * The array must not be changed. */
+  public FieldKey[] getKeys() {
+    return keys;
+  }
+
+  /** Returns the database key of a public field of the class, or null */
+  public FieldKey getKey(Field field) {
+    int index = indexOf(field);
+    return index < 0 ? null : keys[index];
+  }
+
+  public List getFieldList() {
+    return fieldList;
+  }
+
+  public int size() {
+    return fields.length;
+  }
+}
@@ -0,0 +1,33 @@
+import java.lang.reflect.Field;
+
+/**
+ *  FieldKey is used as key for the db hashtable.
+ *  Fields of the same name in different classes (Dog.color and Chair.color)
+ *  hash apart, the hash mixes the declaring class and the name.
+ */
+class FieldKey {
+  public final String name;
+  public final Class cls;
+  public final Field field;
+  private final int hash;
+
+  FieldKey(Field f) {
+    this.field = f;
+    this.name = f.getName();
+    this.cls = f.getDeclaringClass();
+    int h = 31 * cls.getName().hashCode() + name.hashCode();
+    // spreads the bits, the map indexes by the low ones
+    this.hash = h ^ (h >>> 16);
+  }
+
+  public boolean equals(Object o) {
+    return (o instanceof FieldKey) &&
+        (this.name.equals( ( (FieldKey) o).name)) &&
+        (this.cls.equals( ( (FieldKey) o).cls));
+  }
+
+  public int hashCode() {
+    return hash;
+  }
+
+}
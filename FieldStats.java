@@ -0,0 +1,112 @@
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * <p>Title: FieldStats </p>
+ * <p>Description: A snapshot of the statistics of a SpaceField and the
+ * levels under it: the entries under the field, its distinct values, the
+ * entries of every class, the largest values, and how many objects the
+ * lookups in the field went over.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class FieldStats
+    implements Serializable {
+
+  /** Returned to remote clients, so the wire form is fixed. The value is
+   * the one computed for the class as first released. */
+  private static final long serialVersionUID = 778586466727812433L;
+
+  /** The class declaring the field, and its name */
+  private final String className;
+  private final String fieldName;
+
+  /** Number of entries under the field */
+  private final long entries;
+
+  /** Number of distinct values of the field */
+  private final int values;
+
+  /** Number of entries of every class, by class name */
+  private final Map classSizes;
+
+  /** The largest values, as strings, and their number of entries */
+  private final String[] largestValues;
+  private final int[] largestSizes;
+
+  /** Number of lookups in the values of the field, and of the objects
+   * they went over */
+  private final long lookups;
+  private final long scanned;
+
+  FieldStats(String className, String fieldName, long entries, int values,
+             Map classSizes, String[] largestValues, int[] largestSizes,
+             long lookups, long scanned) {
+    this.className = className;
+    this.fieldName = fieldName;
+    this.entries = entries;
+    this.values = values;
+    this.classSizes = classSizes;
+    this.largestValues = largestValues;
+    this.largestSizes = largestSizes;
+    this.lookups = lookups;
+    this.scanned = scanned;
+  }
+
+  public String getClassName() {
+    return className;
+  }
+
+  public String getFieldName() {
+    return fieldName;
+  }
+
+  public long getEntries() {
+    return entries;
+  }
+
+  public int getValues() {
+    return values;
+  }
+
+  /** Returns the number of entries of every class, by class name */
+  public Map getClassSizes() {
+    return classSizes;
+  }
+
+  /** Returns the largest values, the largest first */
+  public String[] getLargestValues() {
+    return largestValues;
+  }
+
+  /** Returns the number of entries of every one of the largest values */
+  public int[] getLargestSizes() {
+    return largestSizes;
+  }
+
+  public long getLookups() {
+    return lookups;
+  }
+
+  public long getScanned() {
+    return scanned;
+  }
+
+  /** Returns the average number of objects a lookup went over, a long
+   * average means the values are not selective */
+  public double getAverageScan() {
+    return lookups == 0 ? 0 : (double) scanned / lookups;
+  }
+
+  public String toString() {
+    StringBuffer s = new StringBuffer();
+    s.append(className).append('.').append(fieldName).append(": ").
+        append(entries).append(" entries, ").append(values).
+        append(" values, ").append(lookups).append(" lookups, average scan ").
+        append(getAverageScan()).append(", classes ").append(classSizes);
+    for (int i = 0; i < largestValues.length; i++) {
+      s.append(i == 0 ? ", largest " : " ").append(largestValues[i]).
+          append('=').append(largestSizes[i]);
+    }
+    return s.toString();
+  }
+}
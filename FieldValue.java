@@ -1,4 +1,9 @@
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
 /**
  * <p>Title: FieldValue </p>
  * <p>Description: The second level of the system.
@@ -7,149 +12,299 @@ import java.util.*;
  */
 public class FieldValue {
 
+  /** Objects of a class are scanned in parallel when they are at least
+   * that many, may be set as a system property */
+  private static final int PARALLEL_MIN =
+      Integer.getInteger("space.parallel.min", 32 * 1024).intValue();
+
+  /** The pool scanning in parallel */
+  private static final ForkJoinPool pool = ForkJoinPool.commonPool();
+
   /** One writer many readers semaphore */
   private RWSemaphore sem;
 
-  /** Maping from all  existing classes  having this field and value to their objects.
-   * Represents the third level of the system. */
-  private Hashtable allClasses;
+  /** Maping from all  existing classes  having this field and value to their objects,
+   * kept in a LongMap by object id. Represents the third level of the system. */
+  private Map allClasses;
 
   /** The value of this field */
   private Object value;
 
-  /** A background thread that removes non-valid objects*/
-  private DisposalsThread disposalsThread;
+  /** The SpaceField of this value, counting the entries and the lookups */
+  private final SpaceField spaceField;
+
+  /** Number of objects under this value, of all classes */
+  private volatile int size = 0;
+
+  /** Stored sub-classes of every class */
+  private ClassHierarchy hierarchy;
+
+  /** All the objects of all classes in the take order, null if unordered.
+   * Looked in instead of the class maps. */
+  private final ConcurrentSkipListSet ordered;
 
-  public FieldValue(Object value, DisposalsThread disposalsThread){
+  public FieldValue(Object value, SpaceField spaceField,
+                    ClassHierarchy hierarchy, TakeOrder order){
     this.value = value;
-    this.sem = new RWSemaphore();
-    this.allClasses = new Hashtable();
-    this.disposalsThread = disposalsThread;
+    this.spaceField = spaceField;
+    this.sem = new RWSemaphore(spaceField.getValueLocks());
+    this.allClasses = new ConcurrentHashMap();
+    this.hierarchy = hierarchy;
+    this.ordered = order == null ? null : new ConcurrentSkipListSet(order);
   }
 
   /** Adds a new entry to this FieldValue. */
   public void addEntry(SpaceObj obj) {
     sem.aquireWriterLock();
     Class objClass = obj.getObjClass();
-    LinkedList classObjects = (LinkedList) allClasses.get(objClass);
+    LongMap classObjects = (LongMap) allClasses.get(objClass);
     //class not found. create a new hash for the class.
     if (classObjects == null) {
-      classObjects = new LinkedList();
+      classObjects = new LongMap();
       allClasses.put(objClass, classObjects);
     }
     // adds the object to the data structure
-    classObjects.add(obj);
-    Object[] address = {
-        this, classObjects};
-    obj.addAddress(address);
+    classObjects.put(obj.getId(), obj);
+    if (ordered != null) {
+      ordered.add(obj);
+      spaceField.addOrdered(obj);
+    }
+    size++;
+    obj.addAddress(this, classObjects);
+    sem.releaseLock();
+    spaceField.countEntries(1);
+  }
+
+  /** Adds a batch of entries to this FieldValue, under a single lock. */
+  public void addEntries(List objs) {
+    sem.aquireWriterLock();
+    Iterator i = objs.iterator();
+    while (i.hasNext()) {
+      SpaceObj obj = (SpaceObj) i.next();
+      Class objClass = obj.getObjClass();
+      LongMap classObjects = (LongMap) allClasses.get(objClass);
+      if (classObjects == null) {
+        classObjects = new LongMap();
+        allClasses.put(objClass, classObjects);
+      }
+      classObjects.put(obj.getId(), obj);
+      if (ordered != null) {
+        ordered.add(obj);
+        spaceField.addOrdered(obj);
+      }
+      size++;
+      obj.addAddress(this, classObjects);
+    }
     sem.releaseLock();
+    spaceField.countEntries(objs.size());
   }
 
   /** Finds an object from this data structure that correlates with the given
    * template. If take flag is on, the object is marked as not valid and  DisposalsThread
    * is notified. */
-  public Entry findCorellatedEntry(SpaceObj template, boolean take) {
+  public SpaceObj findCorellatedObj(SpaceObj template, boolean take) {
+    sem.aquireReadersLock();
+    SpaceObj obj = lookup(template, take);
+    sem.releaseLock();
+    return obj;
+  }
+
+  /** Adds to the found list up to max objects that correlate with the given
+   * template, locking once. If take flag is on, the objects are marked as not
+   * valid and DisposalsThread is notified. Objects in seen, by id, are
+   * skipped and the found ones added there; seen is null if an object can't
+   * be found twice. */
+  public void findCorellatedEntries(SpaceObj template, boolean take, int max,
+                                    List found, LongMap seen) {
+    int examined = 0;
     sem.aquireReadersLock();
-    LinkedList classObjects;
-    Class templateClass = template.getObjClass();
-
-    // if all public fields are null
-    if (template.getObjFields().isEmpty()) {
-      Iterator i1 = allClasses.entrySet().iterator();
-      while (i1.hasNext()) {
-        Map.Entry m = (Map.Entry) i1.next();
-        Class cls = (Class) m.getKey();
-        if (templateClass.isAssignableFrom(cls)) {
-          classObjects = (LinkedList) m.getValue();
-          Iterator i2 = classObjects.iterator();
-          boolean found = false;
-          while (i2.hasNext()) {
-            SpaceObj obj = (SpaceObj) i2.next();
-            synchronized (obj) {
-              if (obj.isValid()) {
-                found = true;
-                if (take) {
-                  obj.invalidate();
-                  obj.cancelTask();
-                  disposalsThread.addObj(obj);
-                }
-              }
-            }
-            if (found) {
-              sem.releaseLock();
-              return obj.getEntry();
-            }
+    if (ordered != null) {
+      Iterator j = ordered.iterator();
+      while (j.hasNext() && found.size() < max) {
+        SpaceObj obj = (SpaceObj) j.next();
+        examined++;
+        if (matches(obj, template) && !isSeen(obj, seen) &&
+            spaceField.obtain(obj, take)) {
+          found.add(obj);
+          if (seen != null) {
+            seen.put(obj.getId(), obj);
           }
         }
       }
+      sem.releaseLock();
+      spaceField.countLookup(examined);
+      return;
     }
-    // at least one public field of the template is not null
-    classObjects = (LinkedList) allClasses.get(templateClass);
-    if (classObjects != null) {
-      Iterator i = classObjects.iterator();
-      while (i.hasNext()) {
-        SpaceObj obj = (SpaceObj) i.next();
-        if (SpaceObj.correlates(obj, template)) {
-        boolean found = false;
-          synchronized (obj) {
-            if (obj.isValid()) {
-              found = true;
-              if (take) {
-                obj.invalidate();
-                obj.cancelTask();
-                disposalsThread.addObj(obj);
-              }
-            }
-          }
-          if (found) {
-            sem.releaseLock();
-            return obj.getEntry();
+    Class[] classes = hierarchy.getSubClasses(template.getObjClass());
+    for (int i = 0; i < classes.length && found.size() < max; i++) {
+      LongMap classObjects = (LongMap) allClasses.get(classes[i]);
+      if (classObjects == null) {
+        continue;
+      }
+      Object[] slots = classObjects.slots();
+      for (int slot = 0; slot < slots.length && found.size() < max; slot++) {
+        SpaceObj obj = (SpaceObj) slots[slot];
+        if (obj == null) {
+          continue;
+        }
+        examined++;
+        if (SpaceObj.correlates(obj, template) && !isSeen(obj, seen) &&
+            spaceField.obtain(obj, take)) {
+          found.add(obj);
+          if (seen != null) {
+            seen.put(obj.getId(), obj);
           }
         }
       }
     }
-    //class not find.look for sub-class
-    else {
-      Iterator i1 = allClasses.entrySet().iterator();
-      while (i1.hasNext()) {
-        Map.Entry m = (Map.Entry) i1.next();
-        Class cls = (Class) m.getKey();
-        if (template.getObjClass().isAssignableFrom(cls)) {
-          classObjects = (LinkedList) m.getValue();
-          Iterator i2 = classObjects.iterator();
-          while (i2.hasNext()) {
-            SpaceObj obj = (SpaceObj) i2.next();
-            if (SpaceObj.correlates(obj, template)) {
-              boolean found = false;
-              synchronized (obj) {
-                if (obj.isValid()) {
-                  found = true;
-                  if (take) {
-                    obj.invalidate();
-                    obj.cancelTask();
-                    disposalsThread.addObj(obj);
-                  }
-                }
-              }
-              if (found) {
-                sem.releaseLock();
-                return obj.getEntry();
-              }
-            }
-          }
+    sem.releaseLock();
+    spaceField.countLookup(examined);
+  }
+
+  /** Returns true if the object was found already by the lookup */
+  private static boolean isSeen(SpaceObj obj, LongMap seen) {
+    return seen != null && seen.containsKey(obj.getId());
+  }
+
+  /** Finds an object that correlates with the given template without locking.
+   * Throws OptimisticReadConflict if a writer changed this FieldValue
+   * meanwhile. */
+  public SpaceObj readOptimistic(SpaceObj template) {
+    long stamp = sem.tryOptimisticRead();
+    SpaceObj obj = lookup(template, false);
+    if (!sem.validate(stamp)) {
+      throw new OptimisticReadConflict();
+    }
+    return obj;
+  }
+
+  /** Looks for a correlated object. Called with the lock held, or optimistically. */
+  private SpaceObj lookup(SpaceObj template, boolean take) {
+    spaceField.countLookup(0);
+    if (ordered != null) {
+      int examined = 0;
+      Iterator j = ordered.iterator();
+      while (j.hasNext()) {
+        SpaceObj obj = (SpaceObj) j.next();
+        examined++;
+        if (matches(obj, template) && spaceField.obtain(obj, take)) {
+          spaceField.countScanned(examined);
+          return obj;
         }
       }
+      spaceField.countScanned(examined);
+      return null;
+    }
+    // the template's class first, then its stored sub-classes
+    Class[] classes = hierarchy.getSubClasses(template.getObjClass());
+    for (int i = 0; i < classes.length; i++) {
+      LongMap classObjects = (LongMap) allClasses.get(classes[i]);
+      if (classObjects == null) {
+        continue;
+      }
+      SpaceObj obj = classObjects.size() >= PARALLEL_MIN &&
+          pool.getParallelism() > 1 ?
+          scanParallel(classObjects, template, take) :
+          scan(classObjects, template, take);
+      if (obj != null) {
+        return obj;
+      }
+    }
+    return null;
+  }
+
+  /** Returns a valid object of the class objects that correlates with the
+   * template, or null. */
+  private SpaceObj scan(LongMap classObjects, SpaceObj template, boolean take) {
+    int examined = 0;
+    SpaceObj found = null;
+    Object[] slots = classObjects.slots();
+    for (int slot = 0; found == null && slot < slots.length; slot++) {
+      SpaceObj obj = (SpaceObj) slots[slot];
+      if (obj == null) {
+        continue;
+      }
+      examined++;
+      if (SpaceObj.correlates(obj, template) && spaceField.obtain(obj, take)) {
+        found = obj;
+      }
+    }
+    spaceField.countScanned(examined);
+    return found;
+  }
+
+  /** Returns a valid object of the class objects that correlates with the
+   * template, or null. The map is split between the threads of the pool,
+   * and the first object found ends the scan. Called with the lock held,
+   * which the pool threads rely on, or optimistically. */
+  private SpaceObj scanParallel(LongMap classObjects, SpaceObj template,
+                                boolean take) {
+    for (; ; ) {
+      AtomicReference found = new AtomicReference();
+      Object[] slots = classObjects.slots();
+      pool.invoke(new ScanTask(slots, template, 0, slots.length, found,
+                               spaceField));
+      SpaceObj obj = (SpaceObj) found.get();
+      // another thread may take it meanwhile, then look again
+      if (obj == null || spaceField.obtain(obj, take)) {
+        return obj;
+      }
+    }
+  }
+
+  /** Returns true if the object is of the template's class or a sub-class,
+   * and correlates with the template */
+  private static boolean matches(SpaceObj obj, SpaceObj template) {
+    return template.getObjClass().isAssignableFrom(obj.getObjClass()) &&
+        SpaceObj.correlates(obj, template);
+  }
+
+  /** Returns the number of objects a lookup of the template would go over
+   * at most: all of them if ordered, else those of the template's class and
+   * its sub-classes. Read without the lock, so it is an estimate. */
+  public int candidates(SpaceObj template) {
+    if (ordered != null) {
+      return size;
+    }
+    int n = 0;
+    Class[] classes = hierarchy.getSubClasses(template.getObjClass());
+    for (int i = 0; i < classes.length; i++) {
+      LongMap classObjects = (LongMap) allClasses.get(classes[i]);
+      if (classObjects != null) {
+        n += classObjects.size();
+      }
+    }
+    return n;
+  }
+
+  /** Adds the number of objects of every class under this value to the
+   * given map, from class name to Integer */
+  void addClassSizes(Map sizes) {
+    sem.aquireReadersLock();
+    Iterator i = allClasses.entrySet().iterator();
+    while (i.hasNext()) {
+      Map.Entry m = (Map.Entry) i.next();
+      String name = ( (Class) m.getKey()).getName();
+      Integer n = (Integer) sizes.get(name);
+      sizes.put(name, Integer.valueOf( (n == null ? 0 : n.intValue()) +
+                                      ( (LongMap) m.getValue()).size()));
     }
     sem.releaseLock();
-      return null;
   }
 
   /** Returns true if no object inside */
   public boolean isEmpty() {
-    sem.aquireReadersLock();
-    boolean b = allClasses.isEmpty();
-    sem.releaseLock();
-    return b;
+    return allClasses.isEmpty();
+  }
+
+  /** Returns the number of objects under this value */
+  public int size() {
+    return size;
+  }
+
+  /** Returns the number of threads waiting for this value */
+  public int getWaitingNo() {
+    return sem.getWaitingNo();
   }
 
   public Object getValue() {
@@ -157,9 +312,16 @@ public class FieldValue {
   }
 
   /** Removes an entry from this data structure */
-  public void removeEntry(List classObjects, SpaceObj obj) {
+  public void removeEntry(LongMap classObjects, SpaceObj obj) {
     sem.aquireWriterLock();
-    classObjects.remove(obj);
+    if (classObjects.remove(obj.getId()) != null) {
+      size--;
+      spaceField.countEntries( -1);
+    }
+    if (ordered != null) {
+      ordered.remove(obj);
+      spaceField.removeOrdered(obj);
+    }
     if (classObjects.isEmpty()) {
       allClasses.remove(obj.getObjClass());
     }
@@ -168,14 +330,72 @@ public class FieldValue {
 
   public boolean equals(Object o) {
     if (value == null) {
-      return (o == null);
+      return (o instanceof FieldValue) && ( (FieldValue) o).value == null;
     }
     return (o instanceof FieldValue) &&
         (this.value.equals( ( (FieldValue) o).value));
   }
 
   public int hashCode() {
-    return value.hashCode();
+    return value == null ? Integer.MAX_VALUE : value.hashCode();
   }
 
 }
+
+/**
+ *  ScanTask looks for a valid object that correlates with a template in a
+ *  range of slots of a class map, splitting it between the pool threads.
+ *  The first object found is set in the shared reference, and stops the
+ *  other tasks.
+ */
+class ScanTask
+    extends RecursiveAction {
+
+  private static final long serialVersionUID = 1L;
+
+  /** A task scans up to that many slots itself */
+  private static final int CHUNK = 4096;
+
+  /** The slots of the class map */
+  private final Object[] slots;
+  private final SpaceObj template;
+  private final int from, to;
+  private final AtomicReference found;
+
+  /** Counts the objects gone over */
+  private final SpaceField spaceField;
+
+  ScanTask(Object[] slots, SpaceObj template, int from, int to,
+           AtomicReference found, SpaceField spaceField) {
+    this.slots = slots;
+    this.template = template;
+    this.from = from;
+    this.to = to;
+    this.found = found;
+    this.spaceField = spaceField;
+  }
+
+  protected void compute() {
+    if (to - from > CHUNK) {
+      int middle = (from + to) >>> 1;
+      invokeAll(new ScanTask(slots, template, from, middle, found,
+                             spaceField),
+                new ScanTask(slots, template, middle, to, found,
+                             spaceField));
+      return;
+    }
+    int examined = 0;
+    for (int slot = from; slot < to && found.get() == null; slot++) {
+      SpaceObj obj = (SpaceObj) slots[slot];
+      if (obj == null) {
+        continue;
+      }
+      examined++;
+      if (obj.isValid() && SpaceObj.correlates(obj, template)) {
+        found.compareAndSet(null, obj);
+        break;
+      }
+    }
+    spaceField.countScanned(examined);
+  }
+}
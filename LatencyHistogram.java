@@ -0,0 +1,125 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Title: LatencyHistogram </p>
+ * <p>Description: Counts durations in buckets of exponentially growing
+ * width, like HdrHistogram: every power of 2 is split into SUB linear
+ * buckets, so a percentile is off by at most 1/SUB of its value. Recording
+ * is a few atomic adds, without locking, and can be turned off by setting
+ * the space.metrics system property to false.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class LatencyHistogram
+    implements LatencyHistogramMBean {
+
+  /** True unless the metrics are turned off */
+  static final boolean ENABLED =
+      !"false".equals(System.getProperty("space.metrics"));
+
+  /** Every power of 2 has 2^SUB_BITS buckets */
+  private static final int SUB_BITS = 5;
+  private static final int SUB = 1 << SUB_BITS;
+
+  /** Number of durations in every bucket */
+  private final AtomicLongArray counts =
+      new AtomicLongArray( (64 - SUB_BITS) * SUB);
+
+  /** Number of durations and their total, in nanoseconds */
+  private final LongAdder count = new LongAdder();
+  private final LongAdder total = new LongAdder();
+
+  /** Longest duration, in nanoseconds */
+  private final AtomicLong max = new AtomicLong();
+
+  /** Counts a duration in nanoseconds */
+  public void record(long nanos) {
+    if (!ENABLED) {
+      return;
+    }
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(indexOf(nanos));
+    count.increment();
+    total.add(nanos);
+    long m = max.get();
+    while (nanos > m && !max.compareAndSet(m, nanos)) {
+      m = max.get();
+    }
+  }
+
+  /** Returns the bucket of a duration */
+  private static int indexOf(long nanos) {
+    if (nanos < SUB) {
+      return (int) nanos;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB - 1);
+    return (exponent - SUB_BITS + 1) * SUB + sub;
+  }
+
+  /** Returns the smallest duration of a bucket */
+  private static long lowestOf(int index) {
+    if (index < SUB) {
+      return index;
+    }
+    int exponent = index / SUB + SUB_BITS - 1;
+    return (long) (SUB | (index % SUB)) << (exponent - SUB_BITS);
+  }
+
+  /** Returns the duration in nanoseconds that the given fraction of the
+   * durations don't exceed, up to the bucket width */
+  public long percentile(double fraction) {
+    long n = count.sum();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(fraction * n));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(lowestOf(i + 1) - 1, max.get());
+      }
+    }
+    return max.get();
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public double getMeanMicros() {
+    long n = count.sum();
+    return n == 0 ? 0 : total.sum() / 1000.0 / n;
+  }
+
+  public double getMaxMicros() {
+    return max.get() / 1000.0;
+  }
+
+  public double getP50Micros() {
+    return percentile(0.5) / 1000.0;
+  }
+
+  public double getP99Micros() {
+    return percentile(0.99) / 1000.0;
+  }
+
+  public double getP999Micros() {
+    return percentile(0.999) / 1000.0;
+  }
+
+  /** Forgets the durations counted so far. Durations counted meanwhile
+   * may be partly kept. */
+  public void reset() {
+    for (int i = 0; i < counts.length(); i++) {
+      counts.set(i, 0);
+    }
+    count.reset();
+    total.reset();
+    max.set(0);
+  }
+}
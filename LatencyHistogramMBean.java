@@ -0,0 +1,23 @@
+/**
+ * <p>Title: LatencyHistogramMBean </p>
+ * <p>Description: The JMX view of a LatencyHistogram. Durations are given
+ * in microseconds.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public interface LatencyHistogramMBean {
+
+  public long getCount();
+
+  public double getMeanMicros();
+
+  public double getMaxMicros();
+
+  public double getP50Micros();
+
+  public double getP99Micros();
+
+  public double getP999Micros();
+
+  /** Forgets the durations counted so far */
+  public void reset();
+}
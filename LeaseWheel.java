@@ -0,0 +1,206 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Title: LeaseWheel </p>
+ * <p>Description: Expires the leases of the objects. A hashed timing wheel:
+ * every bucket holds the objects expiring at the ticks that fall on it, in a
+ * list linked through the objects, so scheduling and canceling a lease are
+ * O(1) under the lock of a single bucket. Once a tick this thread expires the
+ * due objects of one bucket and hands them to the DisposalsThread together.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class LeaseWheel
+    extends Thread {
+
+  /** Length of a tick in milliseconds */
+  private static final long TICK = 1000;
+
+  /** Number of buckets, a power of 2. The wheel turns once in about an hour,
+   * later leases just stay in their bucket for more turns. */
+  private static final int WHEEL_SIZE = 4096;
+
+  private static final int MASK = WHEEL_SIZE - 1;
+
+  /** First object of every bucket */
+  private final SpaceObj[] heads = new SpaceObj[WHEEL_SIZE];
+
+  /** Lock of every bucket */
+  private final Object[] locks = new Object[WHEEL_SIZE];
+
+  /** Time of tick 0 */
+  private final long start;
+
+  /** Last tick whose bucket was expired */
+  private volatile long processedTick = 0;
+
+  /** Number of objects in the buckets */
+  private final LongAdder leaseNo = new LongAdder();
+
+  /** A background thread that removes non-valid objects*/
+  private DisposalsThread disposalsThread;
+
+  public LeaseWheel(DisposalsThread disposalsThread) {
+    this.disposalsThread = disposalsThread;
+    this.start = System.currentTimeMillis();
+    for (int i = 0; i < WHEEL_SIZE; i++) {
+      locks[i] = new Object();
+    }
+    setDaemon(true);
+  }
+
+  /** Schedules the expiration of the object after the given delay */
+  public void schedule(SpaceObj obj, long delay) {
+    long tick = (System.currentTimeMillis() + delay - start + TICK - 1) / TICK;
+    for (; ; ) {
+      long t = Math.max(tick, processedTick + 1);
+      int slot = (int) (t & MASK);
+      synchronized (locks[slot]) {
+        // the bucket may have been expired meanwhile, then try the next tick
+        if (t <= processedTick) {
+          continue;
+        }
+        link(obj, t, slot);
+        return;
+      }
+    }
+  }
+
+  /** Schedules the expiration of all the objects after the given delay.
+   * They share a tick, so its bucket is locked once. */
+  public void scheduleAll(List objs, long delay) {
+    long tick = (System.currentTimeMillis() + delay - start + TICK - 1) / TICK;
+    for (; ; ) {
+      long t = Math.max(tick, processedTick + 1);
+      int slot = (int) (t & MASK);
+      synchronized (locks[slot]) {
+        if (t <= processedTick) {
+          continue;
+        }
+        Iterator i = objs.iterator();
+        while (i.hasNext()) {
+          link( (SpaceObj) i.next(), t, slot);
+        }
+        return;
+      }
+    }
+  }
+
+  /** Adds the object to a bucket. Called with the bucket lock held. */
+  private void link(SpaceObj obj, long tick, int slot) {
+    obj.leaseWheel = this;
+    obj.leaseTick = tick;
+    obj.leaseSlot = slot;
+    obj.leasePrev = null;
+    obj.leaseNext = heads[slot];
+    if (heads[slot] != null) {
+      heads[slot].leasePrev = obj;
+    }
+    heads[slot] = obj;
+    leaseNo.increment();
+  }
+
+  /** Returns the time the object's lease expires, or expired */
+  public long getExpiration(SpaceObj obj) {
+    return start + obj.leaseTick * TICK;
+  }
+
+  /** Cancels the lease of the object, if not expired yet */
+  public void cancel(SpaceObj obj) {
+    int slot = obj.leaseSlot;
+    if (slot < 0) {
+      return;
+    }
+    synchronized (locks[slot]) {
+      if (obj.leaseSlot == slot) {
+        unlink(obj);
+      }
+    }
+  }
+
+  /** Removes the object from its bucket. Called with the bucket lock held. */
+  private void unlink(SpaceObj obj) {
+    if (obj.leasePrev != null) {
+      obj.leasePrev.leaseNext = obj.leaseNext;
+    }
+    else {
+      heads[obj.leaseSlot] = obj.leaseNext;
+    }
+    if (obj.leaseNext != null) {
+      obj.leaseNext.leasePrev = obj.leasePrev;
+    }
+    obj.leasePrev = null;
+    obj.leaseNext = null;
+    obj.leaseSlot = -1;
+    leaseNo.decrement();
+  }
+
+  /** Returns the number of leases not expired or canceled yet */
+  public long getLeaseNo() {
+    return leaseNo.sum();
+  }
+
+  /** Returns how long the expiration is behind the clock, in milliseconds */
+  public long getLagMillis() {
+    long lag = System.currentTimeMillis() - start - (processedTick + 1) * TICK;
+    return Math.max(lag, 0);
+  }
+
+  /** Expires the objects of the tick's bucket that are due */
+  private void expire(long tick) {
+    int slot = (int) (tick & MASK);
+    List expired = new ArrayList();
+    synchronized (locks[slot]) {
+      SpaceObj obj = heads[slot];
+      while (obj != null) {
+        SpaceObj next = obj.leaseNext;
+        if (obj.leaseTick <= tick) {
+          unlink(obj);
+          expired.add(obj);
+        }
+        obj = next;
+      }
+      processedTick = tick;
+    }
+    // an object taken meanwhile is disposed of by its taker, disposing of
+    // it twice would remove the class map of a live one. An object not
+    // validated yet is still being written, it expires at the next tick.
+    Iterator i = expired.iterator();
+    while (i.hasNext()) {
+      SpaceObj obj = (SpaceObj) i.next();
+      synchronized (obj) {
+        if (obj.isValid()) {
+          obj.invalidate();
+          continue;
+        }
+        i.remove();
+        if (!obj.isRemoved()) {
+          schedule(obj, 0);
+        }
+      }
+    }
+    if (expired.isEmpty()) {
+      return;
+    }
+    disposalsThread.addObjs(expired);
+  }
+
+  /** Expires a bucket every tick */
+  public void run() {
+    for (; ; ) {
+      long tick = processedTick + 1;
+      long delay = start + tick * TICK - System.currentTimeMillis();
+      if (delay > 0) {
+        try {
+          sleep(delay);
+        }
+        catch (InterruptedException ex) {
+          System.out.println("Lease expiration Error " + ex.toString());
+          ex.printStackTrace();
+        }
+        continue;
+      }
+      expire(tick);
+    }
+  }
+}
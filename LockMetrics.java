@@ -0,0 +1,10 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  LockMetrics records the waits for a group of locks: how long the threads
+ *  waited, and how many are waiting now.
+ */
+class LockMetrics {
+  final LatencyHistogram waits = new LatencyHistogram();
+  final AtomicInteger waiting = new AtomicInteger();
+}
@@ -0,0 +1,173 @@
+/**
+ * <p>Title: LongMap </p>
+ * <p>Description: A hash map from primitive long keys to objects.
+ *  Open addressing with linear probing keeps it compact: no entry objects
+ *  and no boxed keys. Values may not be null. It is not synchronized.
+ *  The keys and values are published together through a volatile table,
+ *  so a reader without the lock always sees arrays of the same table. Such
+ *  a reader may miss a key, or find one being moved, and must validate
+ *  what it read afterwards.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class LongMap {
+
+  /** The keys and values, replaced together by a resize */
+  private volatile Table table;
+
+  /** Number of mappings */
+  private int size = 0;
+
+  public LongMap() {
+    this(8);
+  }
+
+  public LongMap(int expected) {
+    int capacity = 8;
+    while (capacity * 3 < expected * 4) {
+      capacity <<= 1;
+    }
+    table = new Table(capacity);
+  }
+
+  /** Returns the value of the key, or null. A reader without the lock
+   * stops after a whole turn of the table. */
+  public Object get(long key) {
+    Table t = table;
+    int mask = t.vals.length - 1;
+    int i = hash(key) & mask;
+    for (int n = 0; n <= mask; n++, i = (i + 1) & mask) {
+      Object val = t.vals[i];
+      if (val == null) {
+        return null;
+      }
+      if (t.keys[i] == key) {
+        return val;
+      }
+    }
+    return null;
+  }
+
+  /** Maps the key to the value. Returns the previous value, or null */
+  public Object put(long key, Object value) {
+    if ( (size + 1) * 4 > table.vals.length * 3) {
+      resize(table.vals.length << 1);
+    }
+    long[] keys = table.keys;
+    Object[] vals = table.vals;
+    int mask = vals.length - 1;
+    int i = hash(key) & mask;
+    for (; vals[i] != null; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        Object old = vals[i];
+        vals[i] = value;
+        return old;
+      }
+    }
+    keys[i] = key;
+    vals[i] = value;
+    size++;
+    return null;
+  }
+
+  /** Removes the key. Returns its value, or null if it was not mapped */
+  public Object remove(long key) {
+    long[] keys = table.keys;
+    Object[] vals = table.vals;
+    int mask = vals.length - 1;
+    int gap = hash(key) & mask;
+    for (; vals[gap] != null; gap = (gap + 1) & mask) {
+      if (keys[gap] == key) {
+        break;
+      }
+    }
+    Object old = vals[gap];
+    if (old == null) {
+      return null;
+    }
+    // shift back the following slots of the cluster that may fill the gap
+    for (int i = (gap + 1) & mask; vals[i] != null; i = (i + 1) & mask) {
+      int home = hash(keys[i]) & mask;
+      boolean canMove = (i > gap) ? (home <= gap || home > i)
+          : (home <= gap && home > i);
+      if (canMove) {
+        keys[gap] = keys[i];
+        vals[gap] = vals[i];
+        gap = i;
+      }
+    }
+    vals[gap] = null;
+    size--;
+    return old;
+  }
+
+  public boolean containsKey(long key) {
+    return get(key) != null;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Returns the number of slots. Slots are iterated with valueAt and keyAt */
+  public int capacity() {
+    return table.vals.length;
+  }
+
+  /** Returns the value in the given slot, or null if the slot is free */
+  public Object valueAt(int slot) {
+    return table.vals[slot];
+  }
+
+  /** Returns the key in the given slot, if it is not free */
+  public long keyAt(int slot) {
+    return table.keys[slot];
+  }
+
+  /** Returns the values by slot, null for a free slot. A resize replaces
+   * the array, so going over it sees a single table. */
+  public Object[] slots() {
+    return table.vals;
+  }
+
+  private void resize(int capacity) {
+    long[] oldKeys = table.keys;
+    Object[] oldVals = table.vals;
+    Table t = new Table(capacity);
+    long[] newKeys = t.keys;
+    Object[] newVals = t.vals;
+    int mask = capacity - 1;
+    for (int j = 0; j < oldVals.length; j++) {
+      if (oldVals[j] == null) {
+        continue;
+      }
+      int i = hash(oldKeys[j]) & mask;
+      while (newVals[i] != null) {
+        i = (i + 1) & mask;
+      }
+      newKeys[i] = oldKeys[j];
+      newVals[i] = oldVals[j];
+    }
+    table = t;
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /** Keys and values of the same capacity. A slot is used if its value is
+   * not null. */
+  private static class Table {
+    final long[] keys;
+    final Object[] vals;
+
+    Table(int capacity) {
+      keys = new long[capacity];
+      vals = new Object[capacity];
+    }
+  }
+}
@@ -32,7 +32,11 @@ public class NoPublicFieldsThread
   /** temp list taken from the cache */
   private List tempClasses;
 
-  public NoPublicFieldsThread() {
+  /** Stored sub-classes of every class */
+  private ClassHierarchy hierarchy;
+
+  public NoPublicFieldsThread(ClassHierarchy hierarchy) {
+    this.hierarchy = hierarchy;
     noPublics = new Hashtable();
     npSem = new RWSemaphore();
     allClasses = new Hashtable();
@@ -72,31 +76,31 @@ public class NoPublicFieldsThread
 
   private void check() {
     clsSem.aquireReadersLock();
-    Iterator i1 = allClasses.entrySet().iterator();
-    while (i1.hasNext()) {
-      Map.Entry m = (Map.Entry) i1.next();
-      Class c1 = (Class) m.getKey();
-      Iterator i2 = tempClasses.iterator();
-      while (i2.hasNext()) {
-        Class c2 = (Class) i2.next();
-        if (c1.isAssignableFrom(c2)) {
-          ( (Set) m.getValue()).addAll(Arrays.asList(c2.getFields()));
+    Iterator i = tempClasses.iterator();
+    while (i.hasNext()) {
+      Class c2 = (Class) i.next();
+      // every super class with no public fields gets the fields of c2
+      Class[] supers = hierarchy.getSuperClasses(c2);
+      for (int j = 0; j < supers.length; j++) {
+        Set fields = (Set) allClasses.get(supers[j]);
+        if (fields != null) {
+          fields.addAll(EntrySchema.forClass(c2).getFieldList());
         }
       }
     }
     clsSem.releaseLock();
   }
 
-  /** Finds a correlated entry to the given template.
+  /** Finds a correlated object to the given template.
      / * Removes the entry from the system if the TAKE flag is on. */
   public Object findCorrelatedObj(SpaceObj templateObj, boolean take) {
     npSem.aquireReadersLock();
-    Iterator i = noPublics.entrySet().iterator();
-    while (i.hasNext()) {
-      Map.Entry m = (Map.Entry) i.next();
-      Class cls = (Class) m.getKey();
-      if (templateObj.getObjClass().isAssignableFrom(cls)) {
-        LinkedList l = (LinkedList) noPublics.get(cls);
+    // the template's class first, then its stored sub-classes
+    Class[] classes = hierarchy.getSubClasses(templateObj.getObjClass());
+    for (int i = 0; i < classes.length; i++) {
+      Class cls = classes[i];
+      LinkedList l = (LinkedList) noPublics.get(cls);
+      if (l != null) {
         SpaceObj sp = (SpaceObj) l.getFirst();
         boolean found = false;
         synchronized (sp) {
@@ -104,7 +108,7 @@ public class NoPublicFieldsThread
             found = true;
             if (take) {
               sp.invalidate();
-              sp.cancelTask();
+              sp.cancelLease();
             }
           }
         }
@@ -118,7 +122,7 @@ public class NoPublicFieldsThread
             }
           }
           npSem.releaseLock();
-          return sp.getEntry();
+          return sp;
         }
       }
     }
@@ -129,6 +133,53 @@ public class NoPublicFieldsThread
     return s;
   }
 
+  /** Adds to the found list up to max objects correlated to the given template.
+   * Taken objects, and expired ones met on the way, are removed.
+   * Returns the set of all subclasses fields of the template's class. */
+  public Set findCorrelatedObjs(SpaceObj templateObj, boolean take, int max,
+                                List found) {
+    if (take) {
+      npSem.aquireWriterLock();
+    }
+    else {
+      npSem.aquireReadersLock();
+    }
+    // the template's class first, then its stored sub-classes
+    Class[] classes = hierarchy.getSubClasses(templateObj.getObjClass());
+    for (int i = 0; i < classes.length && found.size() < max; i++) {
+      LinkedList l = (LinkedList) noPublics.get(classes[i]);
+      if (l == null) {
+        continue;
+      }
+      Iterator j = l.iterator();
+      while (j.hasNext() && found.size() < max) {
+        SpaceObj sp = (SpaceObj) j.next();
+        boolean valid;
+        synchronized (sp) {
+          valid = sp.isValid();
+          if (valid && take) {
+            sp.invalidate();
+            sp.cancelLease();
+          }
+        }
+        if (take) {
+          j.remove();
+        }
+        if (valid) {
+          found.add(sp);
+        }
+      }
+      if (take && l.isEmpty()) {
+        noPublics.remove(classes[i]);
+      }
+    }
+    npSem.releaseLock();
+    clsSem.aquireReadersLock();
+    Set s = (Set) allClasses.get(templateObj.getObjClass());
+    clsSem.releaseLock();
+    return s;
+  }
+
   public List getSubClassFields(Class cls) {
     clsSem.aquireReadersLock();
     List l = Arrays.asList( ( (Set) allClasses.get(cls)).toArray());
@@ -160,16 +211,8 @@ public class NoPublicFieldsThread
         c = cls.getSuperclass();
         cls = (new Object()).getClass();
         while (c != null && c != cls) {
-          boolean good = true;
-          Field[] f = c.getFields();
-          for (int j = 0; j < f.length; j++) {
-            int mod = (f[j]).getModifiers();
-            if (Modifier.isPublic(mod)) {
-              good = false;
-              break;
-            }
-          }
-          if (good) {
+          // getFields returns only public fields
+          if (EntrySchema.forClass(c).size() == 0) {
             clsSem.aquireReadersLock();
             if (allClasses.get(c) == null) {
               clsSem.releaseLock();
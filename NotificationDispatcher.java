@@ -0,0 +1,209 @@
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * <p>Title: NotificationDispatcher </p>
+ * <p>Description: Delivers notifications to the remote listeners from a pool
+ * of threads, so a slow listener doesn't hold the RequestsThreads.
+ * The queue is bounded: when it is full the RequestsThreads wait.
+ * A call taking longer than the timeout is left to its thread, and a new
+ * thread takes its place. The notifications of that listener are parked
+ * meanwhile, and once its last stalled call returns, the same thread
+ * delivers them in order. At most threadsNo threads are abandoned at once,
+ * and each of them ends when its call returns.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class NotificationDispatcher {
+
+  /** Notifications waiting for delivery, arrays of a listener and an entry */
+  private final BlockingQueue queue;
+
+  /** Delivery threads */
+  private final DeliveryThread[] workers;
+
+  /** Maximal time in milliseconds for a single notify call */
+  private final long timeout;
+
+  /** Listeners with calls over the timeout, a Stall for every one.
+   * Changed under the lock of the dispatcher. */
+  private final Map stalled = new HashMap();
+
+  /** Number of abandoned threads whose call has not returned yet */
+  private int abandonedNo = 0;
+
+  /** Maximal number of notifications parked for a stalled listener */
+  private final int maxParked;
+
+  public NotificationDispatcher(int threadsNo, int capacity, long timeout) {
+    this.queue = new ArrayBlockingQueue(capacity);
+    this.workers = new DeliveryThread[threadsNo];
+    this.timeout = timeout;
+    this.maxParked = capacity;
+  }
+
+  /** Starts the delivery threads, and checks them with the given timer */
+  public void start(Timer timer) {
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new DeliveryThread();
+      workers[i].start();
+    }
+    timer.schedule(new TimerTask() {
+      public void run() {
+        checkWorkers();
+      }
+    }, timeout, Math.max(1, timeout / 2));
+  }
+
+  /** Queues a notification. Waits while the queue is full. */
+  public void dispatch(RemoteEventListener l, Entry e) {
+    Object[] notification = {
+        l, e};
+    try {
+      queue.put(notification);
+    }
+    catch (InterruptedException ex) {
+      System.out.println("Notification dropped " + ex.toString());
+      ex.printStackTrace();
+    }
+  }
+
+  /** Returns the number of notifications waiting for delivery */
+  public int getWaitingNo() {
+    return queue.size();
+  }
+
+  /** Abandons every thread whose call is over the timeout, and replaces
+   * the abandoned threads while no more than threadsNo are left running.
+   * A thread that is not replaced stays in its place until it is. */
+  private synchronized void checkWorkers() {
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < workers.length; i++) {
+      DeliveryThread w = workers[i];
+      RemoteEventListener l = w.current;
+      if (!w.abandoned && l != null && now - w.callStart > timeout) {
+        Stall s = (Stall) stalled.get(l);
+        if (s == null) {
+          System.out.println("Listener timed out, notifications parked: " + l);
+          s = new Stall();
+          stalled.put(l, s);
+        }
+        s.calls++;
+        abandonedNo++;
+        w.abandoned = true;
+      }
+      if (w.abandoned && abandonedNo <= workers.length) {
+        workers[i] = new DeliveryThread();
+        workers[i].start();
+      }
+    }
+  }
+
+  /** Parks the notification and returns true if its listener is stalled.
+   * Otherwise the call of the given thread starts, and false is returned. */
+  private synchronized boolean parkOrStart(DeliveryThread w,
+                                           RemoteEventListener l, Entry e) {
+    Stall s = (Stall) stalled.get(l);
+    if (s == null) {
+      w.current = l;
+      w.callStart = System.currentTimeMillis();
+      return false;
+    }
+    if (s.parked.size() < maxParked) {
+      s.parked.add(e);
+    }
+    else {
+      s.dropped++;
+    }
+    return true;
+  }
+
+  /** Ends the call of the given thread. The last abandoned thread of a
+   * stalled listener gets its parked notifications one by one, and the
+   * listener is notified by the pool again once there are no more.
+   * Returns the next entry for the thread to deliver, or null. */
+  private synchronized Entry endCall(DeliveryThread w, RemoteEventListener l) {
+    w.current = null;
+    w.callStart = 0;
+    if (!w.abandoned) {
+      return null;
+    }
+    Stall s = (Stall) stalled.get(l);
+    if (s.calls == 1 && !s.parked.isEmpty()) {
+      w.current = l;
+      w.callStart = System.currentTimeMillis();
+      return (Entry) s.parked.removeFirst();
+    }
+    abandonedNo--;
+    if (--s.calls == 0) {
+      stalled.remove(l);
+      System.out.println("Listener returned, notifications resumed: " + l +
+                         (s.dropped == 0 ? "" : ", " + s.dropped + " dropped"));
+    }
+    return null;
+  }
+
+  /**
+   *  A thread delivering notifications until it is abandoned.
+   */
+  private class DeliveryThread
+      extends Thread {
+
+    /** The listener being notified, or null */
+    volatile RemoteEventListener current = null;
+
+    /** Start time of the current call, 0 if none */
+    volatile long callStart = 0;
+
+    /** True if a new thread took the place of this one */
+    volatile boolean abandoned = false;
+
+    DeliveryThread() {
+      setDaemon(true);
+    }
+
+    public void run() {
+      while (!abandoned) {
+        Object[] notification;
+        try {
+          notification = (Object[]) queue.take();
+        }
+        catch (InterruptedException ex) {
+          continue;
+        }
+        RemoteEventListener l = (RemoteEventListener) notification[0];
+        Entry e = (Entry) notification[1];
+        if (parkOrStart(this, l, e)) {
+          continue;
+        }
+        do {
+          try {
+            l.notify(e);
+          }
+          catch (Exception ex) {
+            System.out.println("Error notifying listener " + ex.toString());
+            ex.printStackTrace();
+          }
+          e = endCall(this, l);
+        }
+        while (e != null);
+      }
+    }
+  }
+}
+
+/**
+ *  The calls over the timeout of a listener, and the notifications parked
+ *  until they return.
+ */
+class Stall {
+
+  /** Number of abandoned threads in a call of the listener */
+  int calls = 0;
+
+  /** Entries to notify the listener of, in order */
+  final LinkedList parked = new LinkedList();
+
+  /** Notifications dropped because too many were parked */
+  int dropped = 0;
+}
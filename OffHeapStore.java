@@ -0,0 +1,142 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Title: OffHeapStore </p>
+ * <p>Description: Keeps byte blocks outside the heap, in direct buffers
+ * (slabs) allocated as needed. A block is rounded up to a power of 2, and
+ * freed blocks are kept in a free list of their size, linked through the
+ * blocks themselves, for the next blocks of that size. A block is known by
+ * a handle: the index of its slab and its offset there.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class OffHeapStore {
+
+  /** Blocks are of 2^MIN_SHIFT to 2^MAX_SHIFT bytes */
+  private static final int MIN_SHIFT = 4;
+  private static final int MAX_SHIFT = 20;
+
+  /** Size of a slab */
+  private final int slabSize;
+
+  /** The slabs. The array is replaced, never changed. */
+  private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+  /** Offset of the first never used byte of the last slab */
+  private int top;
+
+  /** Head of the free list of every block size, -1 if empty. Every free
+   * block holds its length, then the handle of the next free block. */
+  private final long[] freeHeads = new long[MAX_SHIFT + 1];
+
+  /** Lock of every free list */
+  private final Object[] locks = new Object[MAX_SHIFT + 1];
+
+  /** Total size of the blocks in use */
+  private final AtomicLong usedBytes = new AtomicLong();
+
+  public OffHeapStore(int slabSize) {
+    this.slabSize = Math.max(slabSize, 1 << MAX_SHIFT);
+    this.top = this.slabSize;
+    for (int i = 0; i <= MAX_SHIFT; i++) {
+      freeHeads[i] = -1;
+      locks[i] = new Object();
+    }
+  }
+
+  /** Copies the bytes to a new block. Returns its handle, or -1 if they
+   * are too big for a block. */
+  public long store(byte[] bytes) {
+    int shift = shiftOf(4 + bytes.length);
+    if (shift > MAX_SHIFT) {
+      return -1;
+    }
+    long handle;
+    synchronized (locks[shift]) {
+      handle = freeHeads[shift];
+      if (handle != -1) {
+        freeHeads[shift] = slab(handle).getLong(offset(handle) + 4);
+      }
+    }
+    if (handle == -1) {
+      handle = allocate(1 << shift);
+    }
+    ByteBuffer b = slab(handle).duplicate();
+    b.position(offset(handle));
+    b.putInt(bytes.length);
+    b.put(bytes);
+    usedBytes.addAndGet(1 << shift);
+    return handle;
+  }
+
+  /** Returns the bytes of a block. They are valid until the block is freed. */
+  public ByteBuffer read(long handle) {
+    ByteBuffer slab = slab(handle);
+    int offset = offset(handle);
+    ByteBuffer b = slab.duplicate();
+    b.limit(offset + 4 + slab.getInt(offset)).position(offset + 4);
+    return b.slice();
+  }
+
+  /** Returns the slab holding a block, to read it in place with absolute
+   * gets from start(handle), without the buffers read creates. The bytes
+   * are valid until the block is freed. */
+  ByteBuffer slabOf(long handle) {
+    return slab(handle);
+  }
+
+  /** Returns the offset of the bytes of a block in its slab */
+  static int start(long handle) {
+    return offset(handle) + 4;
+  }
+
+  /** Frees a block for reuse */
+  public void free(long handle) {
+    ByteBuffer slab = slab(handle);
+    int offset = offset(handle);
+    int shift = shiftOf(4 + slab.getInt(offset));
+    synchronized (locks[shift]) {
+      slab.putLong(offset + 4, freeHeads[shift]);
+      freeHeads[shift] = handle;
+    }
+    usedBytes.addAndGet( - (1 << shift));
+  }
+
+  /** Returns the total size of the blocks in use */
+  public long getUsedBytes() {
+    return usedBytes.get();
+  }
+
+  /** Returns the total size of the slabs */
+  public long getReservedBytes() {
+    return (long) slabs.length * slabSize;
+  }
+
+  /** Takes a never used block from the last slab, or from a new one */
+  private synchronized long allocate(int size) {
+    if (top + size > slabSize) {
+      ByteBuffer[] updated = new ByteBuffer[slabs.length + 1];
+      System.arraycopy(slabs, 0, updated, 0, slabs.length);
+      updated[slabs.length] = ByteBuffer.allocateDirect(slabSize);
+      slabs = updated;
+      top = 0;
+    }
+    long handle = ( (long) (slabs.length - 1) << 32) | top;
+    top += size;
+    return handle;
+  }
+
+  private ByteBuffer slab(long handle) {
+    return slabs[ (int) (handle >>> 32)];
+  }
+
+  private static int offset(long handle) {
+    return (int) handle;
+  }
+
+  /** Returns the shift of the smallest block size holding the given length */
+  private static int shiftOf(int length) {
+    int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+    return Math.max(shift, MIN_SHIFT);
+  }
+}
@@ -0,0 +1,9 @@
+/**
+ *  Thrown by an optimistic read while a writer changed the data it went
+ *  over. The caller retries under the lock.
+ */
+class OptimisticReadConflict
+    extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+}
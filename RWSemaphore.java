@@ -1,72 +1,433 @@
-import java.util.Vector;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 /**
  * <p>Title: RWSemaphore </p>
- * <p>Description: A classical many readers one writer semaphore.</p>
+ * <p>Description: A classical many readers one writer semaphore.
+ * Readers don't take the monitor while no writer owns the lock: they count
+ * themselves in a single counter, spread over padded stripes once readers
+ * contend on it, so they don't serialize on one cache line. A writer
+ * claims the lock under the monitor, which stops new readers, then waits
+ * for the readers inside to leave.
+ * Every thread keeps the read locks it holds in a small stack of its own,
+ * so re-entering and releasing look only at the few locks of the thread and
+ * allocate nothing, and waiting threads are parked on their
+ * own wait node, reused by every wait of the thread, so a release wakes
+ * only the threads that can proceed.
+ * A version stamp, changed by every writer, supports optimistic reads.</p>
  * @authors Yael Weinberg and Marcel Apfelbaum
  */
 
 public class RWSemaphore {
 
-  /** A list of reader threads which currently own the lock*/
-  private Vector currentReaders = new Vector();
+  /** The read locks every thread holds */
+  private static final ThreadLocal readHolds = new ThreadLocal() {
+    protected Object initialValue() {
+      return new ReadHolds();
+    }
+  };
+
+  /** The wait node of every thread */
+  private static final ThreadLocal waitNodes = new ThreadLocal() {
+    protected Object initialValue() {
+      return new WaitNode(Thread.currentThread());
+    }
+  };
+
+  /** Stripes of the reader counts, a power of two */
+  private static final int STRIPES = stripes();
+
+  /** Ints between two stripes, so every one has a cache line */
+  private static final int PAD = 16;
+
+  private static final AtomicIntegerFieldUpdater BASE =
+      AtomicIntegerFieldUpdater.newUpdater(RWSemaphore.class, "base");
+
+  /** Number of threads which currently own the read lock, before the
+   * readers contended on it, and of the readers the lock was handed to */
+  private volatile int base = 0;
 
-  /** A queue of threads waiting the lock*/
-  private Vector queue = new Vector();
+  /** Number of readers of every stripe, null until they contended on the
+   * base count. The readers in all the counts are the owners of the lock. */
+  private volatile AtomicIntegerArray striped = null;
 
-  /** A single writer thread that own the lock */
-  private Thread writer = null;
+  /** A FIFO queue of wait nodes of the threads waiting the lock, linked
+   * through the nodes. It is only used while a writer owns the lock. */
+  private WaitNode head, tail;
+
+  /** Size of the queue, readable without the semaphore monitor */
+  private volatile int waitingNo = 0;
+
+  /** A single writer thread that own the lock, or is waiting for the
+   * readers to leave */
+  private volatile Thread writer = null;
+
+  /** Incremented when a writer acquires and when it releases the lock,
+   * so it is odd while a writer owns the lock */
+  private volatile long version = 0;
+
+  /** Returned by tryOptimisticRead when a writer owns the lock */
+  public static final long NO_STAMP = -1;
+
+  /** Records the waits for the lock, null if not recorded */
+  private final LockMetrics metrics;
+
+  public RWSemaphore() {
+    this(null);
+  }
+
+  public RWSemaphore(LockMetrics metrics) {
+    this.metrics = metrics;
+  }
 
   /** Returns true if a writer owns the lock, false otherwise  */
-  public synchronized boolean lockedByWriter() {
+  public boolean lockedByWriter() {
     return writer != null;
   }
 
   /** Returns the number of waiting threads */
-  public synchronized int getWaitingNo() {
-    return queue.size();
+  public int getWaitingNo() {
+    return waitingNo;
+  }
+
+  /** Returns a stamp for reading without the lock, or NO_STAMP if
+   * a writer owns the lock */
+  public long tryOptimisticRead() {
+    long stamp = version;
+    return (stamp & 1) == 0 ? stamp : NO_STAMP;
+  }
+
+  /** Returns true if no writer acquired the lock since the stamp was taken */
+  public boolean validate(long stamp) {
+    return stamp != NO_STAMP && version == stamp;
   }
 
  /** Many readers are allowed to hold the lock of this semaphore  */
-  public synchronized void aquireReadersLock() {
-    Thread callingThread = Thread.currentThread();
-    if (writer != null || !queue.isEmpty()) {
-      queue.addElement(callingThread);
-      while (writer != null || callingThread != queue.firstElement())
-        try {wait();}
-        catch (InterruptedException ex) {}
-        queue.removeElement(callingThread);
+  public void aquireReadersLock() {
+    ReadHolds held = (ReadHolds) readHolds.get();
+    // a thread already reading re-enters, or it would wait for itself
+    if (held.reenter(this)) {
+      return;
     }
-    currentReaders.addElement(callingThread);
-    notifyAll();
+    if (writer == null) {
+      int stripe = arrive(held);
+      // a writer claims the lock before it counts the readers, so one of
+      // them sees the other
+      if (writer == null) {
+        held.push(this, stripe);
+        return;
+      }
+      depart(stripe);
+    }
+    WaitNode node;
+    synchronized (this) {
+      if (writer == null) {
+        BASE.incrementAndGet(this);
+        held.push(this, -1);
+        return;
+      }
+      node = enqueue(false);
+    }
+    await(node, false);
+    // the lock was handed to it in the base count
+    held.push(this, -1);
   }
 
  /** One writer allowed to hold the lock of this semaphore  */
-  public synchronized void aquireWriterLock() {
+  public void aquireWriterLock() {
     Thread callingThread = Thread.currentThread();
+    WaitNode node = null;
+    synchronized (this) {
+      if (writer == null) {
+        setWriter(callingThread);
+      }
+      else {
+        node = enqueue(true);
+      }
+    }
+    if (node != null || readers() > 0) {
+      await(node, true);
+    }
+  }
 
-    if (writer != null || !currentReaders.isEmpty()) {
-      queue.addElement(callingThread);
-      while (writer != null || !currentReaders.isEmpty() ||
-              callingThread != queue.firstElement())
-        try { wait();}
-        catch (InterruptedException ex) {}
-        queue.removeElement(callingThread);
+  /** Waits until the lock is handed to the node, if any, and for a writer
+   * until the readers left, recording the wait */
+  private void await(WaitNode node, boolean exclusive) {
+    long start = 0;
+    if (metrics != null) {
+      metrics.waiting.incrementAndGet();
+      start = System.nanoTime();
+    }
+    if (node != null) {
+      node.await();
+    }
+    if (exclusive) {
+      // the leaving readers unpark the writer
+      while (readers() > 0) {
+        LockSupport.park(this);
+      }
+    }
+    if (metrics != null) {
+      metrics.waits.record(System.nanoTime() - start);
+      metrics.waiting.decrementAndGet();
     }
-    writer = callingThread;
   }
 
 /** Release the semaphore lock */
-  public synchronized void releaseLock() {
-    Thread callingThread = Thread.currentThread();
-    if (currentReaders.contains(callingThread)) {
-      currentReaders.removeElement(callingThread);
-      if (currentReaders.isEmpty()) {
-        notifyAll();
+  public void releaseLock() {
+    ReadHolds held = (ReadHolds) readHolds.get();
+    int released = held.release(this);
+    if (released > 0) {
+      // still held by this thread
+      return;
+    }
+    if (released == 0) {
+      depart(held.releasedStripe);
+      return;
+    }
+    synchronized (this) {
+      if (Thread.currentThread() == writer) {
+        writer = null;
+        version++;
+        grantWaiters();
+      }
+    }
+  }
+
+  /** Counts the calling thread in as a reader. Returns the stripe it is
+   * counted in, or -1 for the base count. */
+  private int arrive(ReadHolds held) {
+    AtomicIntegerArray counts = striped;
+    if (counts == null) {
+      int n = base;
+      if (BASE.compareAndSet(this, n, n + 1)) {
+        return -1;
+      }
+      counts = inflate();
+    }
+    int stripe = held.probe & (STRIPES - 1);
+    while (true) {
+      int n = counts.get(stripe * PAD);
+      if (counts.compareAndSet(stripe * PAD, n, n + 1)) {
+        return stripe;
+      }
+      // another reader on the stripe, move the thread to another one
+      stripe = held.nextProbe() & (STRIPES - 1);
+    }
+  }
+
+  /** Counts a reader out of the given stripe, and wakes the writer
+   * waiting for the readers to leave */
+  private void depart(int stripe) {
+    if (stripe < 0) {
+      BASE.decrementAndGet(this);
+    }
+    else {
+      striped.decrementAndGet(stripe * PAD);
+    }
+    Thread w = writer;
+    if (w != null) {
+      LockSupport.unpark(w);
+    }
+  }
+
+  /** Creates the stripes, once the readers contended on the base count */
+  private synchronized AtomicIntegerArray inflate() {
+    if (striped == null) {
+      striped = new AtomicIntegerArray(STRIPES * PAD);
+    }
+    return striped;
+  }
+
+  /** Returns the number of threads that own the read lock */
+  private int readers() {
+    int n = base;
+    AtomicIntegerArray counts = striped;
+    if (counts != null) {
+      for (int i = 0; i < STRIPES; i++) {
+        n += counts.get(i * PAD);
       }
     }
-    else if (callingThread == writer) {
-      writer = null;
-      notifyAll();
+    return n;
+  }
+
+  /** Returns the number of stripes: a power of two, twice the processors
+   * and at most 64 */
+  private static int stripes() {
+    int n = 2;
+    while (n < 2 * Runtime.getRuntime().availableProcessors() && n < 64) {
+      n *= 2;
+    }
+    return n;
+  }
+
+  /** Hands the lock to a writer. Called with the monitor held. */
+  private void setWriter(Thread thread) {
+    writer = thread;
+    version++;
+  }
+
+  /** Appends the wait node of the calling thread to the queue. Called with
+   * the monitor held. */
+  private WaitNode enqueue(boolean exclusive) {
+    WaitNode node = (WaitNode) waitNodes.get();
+    node.reset(exclusive);
+    if (tail == null) {
+      head = node;
+    }
+    else {
+      tail.next = node;
+    }
+    tail = node;
+    waitingNo++;
+    return node;
+  }
+
+  /** Hands the lock to the head of the queue: every reader up to the next
+   * waiting writer, and that writer, which then waits for those readers to
+   * leave. Called with the monitor held. */
+  private void grantWaiters() {
+    while (head != null && writer == null) {
+      WaitNode node = head;
+      if (node.exclusive) {
+        setWriter(node.thread);
+      }
+      else {
+        BASE.incrementAndGet(this);
+      }
+      head = node.next;
+      if (head == null) {
+        tail = null;
+      }
+      node.next = null;
+      waitingNo--;
+      node.signal();
+    }
+  }
+}
+
+/**
+ *  ReadHolds is the stack of the read locks a thread holds, with the number
+ *  of holds of every one and the stripe it is counted in. A thread holds
+ *  few locks at a time, the last one taken is usually the first released.
+ */
+class ReadHolds {
+  private RWSemaphore[] locks = new RWSemaphore[8];
+  private int[] holds = new int[8];
+  private int[] stripes = new int[8];
+  private int size = 0;
+
+  /** The stripe of the lock last released by release */
+  int releasedStripe;
+
+  /** Picks the stripe the thread counts itself in */
+  int probe = (int) Thread.currentThread().getId() * 0x9E3779B9;
+
+  /** Moves the thread to another stripe */
+  int nextProbe() {
+    probe ^= probe << 13;
+    probe ^= probe >>> 17;
+    probe ^= probe << 5;
+    return probe;
+  }
+
+  /** Adds a hold of a lock the thread already holds. Returns false if it
+   * does not hold it. */
+  boolean reenter(RWSemaphore lock) {
+    int i = indexOf(lock);
+    if (i < 0) {
+      return false;
     }
+    holds[i]++;
+    return true;
+  }
+
+  /** Adds a lock the thread just acquired, counted in the given stripe */
+  void push(RWSemaphore lock, int stripe) {
+    if (size == locks.length) {
+      RWSemaphore[] l = new RWSemaphore[2 * size];
+      int[] h = new int[2 * size];
+      int[] s = new int[2 * size];
+      System.arraycopy(locks, 0, l, 0, size);
+      System.arraycopy(holds, 0, h, 0, size);
+      System.arraycopy(stripes, 0, s, 0, size);
+      locks = l;
+      holds = h;
+      stripes = s;
+    }
+    locks[size] = lock;
+    stripes[size] = stripe;
+    holds[size++] = 1;
+  }
+
+  /** Releases a hold of the lock. Returns the holds left, 0 if the thread
+   * does not hold it any more, and then releasedStripe is its stripe, or -1
+   * if it held no read lock of it. */
+  int release(RWSemaphore lock) {
+    int i = indexOf(lock);
+    if (i < 0) {
+      return -1;
+    }
+    if (--holds[i] > 0) {
+      return holds[i];
+    }
+    releasedStripe = stripes[i];
+    size--;
+    System.arraycopy(locks, i + 1, locks, i, size - i);
+    System.arraycopy(holds, i + 1, holds, i, size - i);
+    System.arraycopy(stripes, i + 1, stripes, i, size - i);
+    locks[size] = null;
+    return 0;
+  }
+
+  /** Returns the place of the lock in the stack, or -1 */
+  private int indexOf(RWSemaphore lock) {
+    for (int i = size - 1; i >= 0; i--) {
+      if (locks[i] == lock) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
+
+/**
+ *  WaitNode is the private monitor a single waiting thread is parked on.
+ *  A thread waits for one lock at a time, so it reuses its node.
+ */
+class WaitNode {
+  final Thread thread;
+
+  /** True if waiting for the writer lock, set with the monitor of the
+   * semaphore held */
+  boolean exclusive;
+
+  /** The next node in the queue of the semaphore */
+  WaitNode next;
+
+  private boolean granted = false;
+
+  WaitNode(Thread thread) {
+    this.thread = thread;
+  }
+
+  /** Prepares the node for a new wait */
+  synchronized void reset(boolean exclusive) {
+    this.exclusive = exclusive;
+    this.next = null;
+    granted = false;
+  }
+
+  /** Blocks until the lock was handed to this node */
+  synchronized void await() {
+    while (!granted)
+      try {wait();}
+      catch (InterruptedException ex) {}
+  }
+
+  /** Wakes the waiting thread, after the lock was handed to it */
+  synchronized void signal() {
+    granted = true;
+    notify();
   }
 }
@@ -0,0 +1,85 @@
+import java.io.Serializable;
+import java.util.NavigableMap;
+
+/**
+ * <p>Title: Range </p>
+ * <p>Description: A range of values of a public field, for range queries.
+ * A missing bound leaves the range open at that end. The bounds must be
+ * comparable with the values of the field.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class Range
+    implements Serializable {
+
+  /** Sent to the space by remote clients, so the wire form is fixed. The
+   * value is the one computed for the class as first released. */
+  private static final long serialVersionUID = 5615795497998455377L;
+
+  /** Name of the public field */
+  private final String fieldName;
+
+  /** The bounds, null if open */
+  private final Comparable low;
+  private final Comparable high;
+
+  /** True if a bound is in the range */
+  private final boolean lowInclusive;
+  private final boolean highInclusive;
+
+  public Range(String fieldName, Comparable low, boolean lowInclusive,
+               Comparable high, boolean highInclusive) {
+    this.fieldName = fieldName;
+    this.low = low;
+    this.lowInclusive = lowInclusive;
+    this.high = high;
+    this.highInclusive = highInclusive;
+  }
+
+  public String getFieldName() {
+    return fieldName;
+  }
+
+  /** Returns true if the value is in the range. A null value is not. */
+  public boolean contains(Object value) {
+    if (value == null) {
+      return false;
+    }
+    try {
+      if (low != null) {
+        int c = low.compareTo(value);
+        if (c > 0 || (c == 0 && !lowInclusive)) {
+          return false;
+        }
+      }
+      if (high != null) {
+        int c = high.compareTo(value);
+        if (c < 0 || (c == 0 && !highInclusive)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    catch (ClassCastException ex) {
+      return false;
+    }
+  }
+
+  /** Returns the part of a map ordered by values that is in the range */
+  NavigableMap subMap(NavigableMap values) {
+    if (low != null && high != null) {
+      return values.subMap(low, lowInclusive, high, highInclusive);
+    }
+    if (low != null) {
+      return values.tailMap(low, lowInclusive);
+    }
+    if (high != null) {
+      return values.headMap(high, highInclusive);
+    }
+    return values;
+  }
+
+  public String toString() {
+    return (lowInclusive ? "[" : "(") + low + ", " + high +
+        (highInclusive ? "]" : ")") + " of " + fieldName;
+  }
+}
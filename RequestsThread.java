@@ -1,40 +1,69 @@
+import java.lang.reflect.*;
 import java.util.*;
 
 /**
  * <p>Title: RequestsThread </p>
  * <p>Description: It keeps all the "register" requests. Every time a new entry is entered
  * in the system, this thread is notified and process them.
+ * The requests are divided between several such threads by template class.
+ * Matched listeners are notified by a NotificationDispatcher, and blocked
+ * reads and takes are handed the object by their Waiter.
  * It is powered by a producers/consumer mechanism </p>
  * @authors Yael Weinberg and Marcel Apfelbaum
  */
 public class RequestsThread
     extends Thread {
 
-  /** All registered requests */
+  /** All registered requests, a ClassRequests index for every template class */
   private HashMap requests;
 
   /** thread caches */
   private List requestsCache;
   private List objectsCache;
+  private List removalsCache;
 
   /** temporar lists */
-  private List tempRequests, tempObjects;
+  private List tempRequests, tempObjects, tempRemovals;
 
-  public RequestsThread() {
+  /** Stored sub-classes of every class */
+  private ClassHierarchy hierarchy;
+
+  /** Delivers the notifications to the listeners */
+  private NotificationDispatcher dispatcher;
+
+  public RequestsThread(ClassHierarchy hierarchy,
+                        NotificationDispatcher dispatcher) {
+    this.hierarchy = hierarchy;
+    this.dispatcher = dispatcher;
     requests = new HashMap();
     requestsCache = Collections.synchronizedList(new ArrayList());
     objectsCache = Collections.synchronizedList(new ArrayList());
+    removalsCache = Collections.synchronizedList(new ArrayList());
   }
 
   /** Adds a new request to cache */
   public void addRequest(SpaceObj template, RemoteEventListener l) {
     Object[] request = {
         template, l};
+    addRequest(request);
+  }
+
+  /** Adds a new request to cache, an array of a template and either a
+   * RemoteEventListener or a Waiter */
+  public void addRequest(Object[] request) {
     synchronized (requestsCache) {
       requestsCache.add(request);
     }
   }
 
+  /** Removes a request that is not needed any more, then the thread is notified */
+  public void removeRequest(Object[] request) {
+    synchronized (objectsCache) {
+      removalsCache.add(request);
+      objectsCache.notify();
+    }
+  }
+
   /** When a new object is entered, is added to the cache, then  the thread is notified*/
   public void addObj(SpaceObj obj) {
     synchronized (objectsCache) {
@@ -43,50 +72,55 @@ public class RequestsThread
     }
   }
 
+  /** Adds a batch of new objects to the cache, then the thread is notified once */
+  public void addObjs(List objs) {
+    synchronized (objectsCache) {
+      objectsCache.addAll(objs);
+      objectsCache.notify();
+    }
+  }
+
+  /** Returns the number of written objects waiting to be matched */
+  public int getWaitingNo() {
+    return objectsCache.size();
+  }
+
   /** Process the requests from data structure and the cache */
-  private void doRequests(SpaceObj writtenObj) throws Exception {
-    List requestsToRemove = new ArrayList();
-    List classesToRemove = new ArrayList();
-    Iterator i1 = requests.entrySet().iterator();
-    while (i1.hasNext()) {
-      Map.Entry maping1 = (Map.Entry) i1.next();
-      if ( ( (Class) maping1.getKey()).isAssignableFrom(writtenObj.getObjClass())) {
-        List l = (List) maping1.getValue();
-        Iterator i2 = l.iterator();
-        while (i2.hasNext()) {
-          Object[] o = ( (Object[]) i2.next());
-          if (SpaceObj.correlates(writtenObj, (SpaceObj) o[0])) {
-            ( (RemoteEventListener) o[1]).notify(writtenObj.getEntry());
-            requestsToRemove.add(o);
-          }
-        }
-        l.removeAll(requestsToRemove);
-        requestsToRemove.clear();
-        if (l.size() == 0) {
-          classesToRemove.add(maping1.getKey());
-        }
+  private void doRequests(SpaceObj writtenObj) {
+    List matched = new ArrayList();
+    // requests are kept by template class, any super class of the object may match
+    Class[] classes = hierarchy.getSuperClasses(writtenObj.getObjClass());
+    for (int j = 0; j < classes.length; j++) {
+      ClassRequests cr = (ClassRequests) requests.get(classes[j]);
+      if (cr == null) {
+        continue;
       }
-    }
-    // remove empty classes from the  map
-    if (!classesToRemove.isEmpty()) {
-      Iterator i = classesToRemove.iterator();
-      while (i.hasNext()) {
-        requests.remove( (Class) i.next());
+      cr.removeMatching(writtenObj, matched);
+      // remove empty classes from the  map
+      if (cr.isEmpty()) {
+        requests.remove(classes[j]);
       }
-      classesToRemove.clear();
     }
 
-    // notify also the new requests from cache
+    // check also the new requests from cache
     Iterator i = tempRequests.iterator();
     while (i.hasNext()) {
       Object[] o = ( (Object[]) i.next());
-      if (SpaceObj.correlates(writtenObj, (SpaceObj) o[0])) {
-        ( (RemoteEventListener) o[1]).notify(writtenObj.getEntry());
-        requestsToRemove.add(o);
+      SpaceObj template = (SpaceObj) o[0];
+      if (template.getObjClass().isAssignableFrom(writtenObj.getObjClass()) &&
+          SpaceObj.correlates(writtenObj, template) &&
+          ClassRequests.accept(o, writtenObj, matched)) {
+        i.remove();
       }
     }
-    tempRequests.removeAll(requestsToRemove);
-    requestsToRemove.clear();
+
+    // every request is notified once, and its log record removed
+    i = matched.iterator();
+    while (i.hasNext()) {
+      Object[] o = (Object[]) i.next();
+      ( (SpaceObj) o[0]).invalidate();
+      dispatcher.dispatch( (RemoteEventListener) o[1], writtenObj.getEntry());
+    }
   }
 
   /** Is runned every time a new entry is entered in the space.*/
@@ -97,10 +131,12 @@ public class RequestsThread
         synchronized (requestsCache) {
           tempObjects = Arrays.asList(objectsCache.toArray());
           tempRequests.addAll(Arrays.asList(requestsCache.toArray()));
+          tempRemovals = Arrays.asList(removalsCache.toArray());
           objectsCache.clear();
           requestsCache.clear();
+          removalsCache.clear();
         }
-        if (tempObjects.size() == 0) {
+        if (tempObjects.size() == 0 && tempRemovals.size() == 0) {
           try {
             objectsCache.wait();
           }
@@ -114,31 +150,158 @@ public class RequestsThread
       Iterator i = tempObjects.iterator();
       // for each new object, notify the mached requests
       while (i.hasNext()) {
-        try {
-          doRequests( (SpaceObj) i.next());
-        }
-        catch (Exception ex1) {
-          System.out.println("RequestsThread: Error verifing requests!" +
-                             ex1.toString());
-          ex1.printStackTrace();
-        }
+        doRequests( (SpaceObj) i.next());
       }
       i = tempRequests.iterator();
       // put the requests from cache to the data base
       while (i.hasNext()) {
         Object[] o = (Object[]) i.next();
-        SpaceObj requestedTemplate = (SpaceObj) o[0];
-        List classList = (List) requests.get( (Class) requestedTemplate.
-                                             getObjClass());
+        Class templateClass = ( (SpaceObj) o[0]).getObjClass();
+        ClassRequests cr = (ClassRequests) requests.get(templateClass);
         //class already exists in map
-        if (classList == null) {
-          classList = new ArrayList();
-          requests.put(requestedTemplate.getObjClass(), classList);
+        if (cr == null) {
+          cr = new ClassRequests();
+          requests.put(templateClass, cr);
         }
-        classList.add(o);
+        cr.add(o);
       }
       tempRequests.clear();
+      i = tempRemovals.iterator();
+      // remove the requests not needed any more
+      while (i.hasNext()) {
+        Object[] o = (Object[]) i.next();
+        Class templateClass = ( (SpaceObj) o[0]).getObjClass();
+        ClassRequests cr = (ClassRequests) requests.get(templateClass);
+        if (cr != null) {
+          cr.remove(o);
+          if (cr.isEmpty()) {
+            requests.remove(templateClass);
+          }
+        }
+      }
     }
   }
 
 }
+
+/**
+ *  ClassRequests holds the requests of one template class. Every request is
+ *  indexed by the first not null field of its template and that value, so a
+ *  written object is checked only against requests that share one of its values.
+ */
+class ClassRequests {
+
+  /** Maping from a field to a map from a ValueKey to a list of requests */
+  private final HashMap byField = new HashMap();
+
+  /** Requests whose templates have no not null field, they match any object */
+  private final List anyObject = new ArrayList();
+
+  /** Adds a request, an array of a template and a listener or a Waiter */
+  void add(Object[] request) {
+    List l = getList( (SpaceObj) request[0], true);
+    l.add(request);
+  }
+
+  /** Removes a request, if still here */
+  void remove(Object[] request) {
+    SpaceObj template = (SpaceObj) request[0];
+    List l = getList(template, false);
+    if (l == null || !l.remove(request) || !l.isEmpty() || l == anyObject) {
+      return;
+    }
+    // the list is indexed by the first not null field
+    Iterator i = template.getEntryFields().iterator();
+    while (i.hasNext()) {
+      Field field = (Field) i.next();
+      Object val = template.getValue(field);
+      if (val != null) {
+        Map values = (Map) byField.get(field);
+        values.remove(new ValueKey(val));
+        if (values.isEmpty()) {
+          byField.remove(field);
+        }
+        return;
+      }
+    }
+  }
+
+  /** Returns the list a template's requests are indexed in, by its first not
+   * null field and that value. Creates it if asked to, else may return null. */
+  private List getList(SpaceObj template, boolean create) {
+    Iterator i = template.getEntryFields().iterator();
+    while (i.hasNext()) {
+      Field field = (Field) i.next();
+      Object val = template.getValue(field);
+      if (val == null) {
+        continue;
+      }
+      Map values = (Map) byField.get(field);
+      if (values == null) {
+        if (!create) {
+          return null;
+        }
+        values = new HashMap();
+        byField.put(field, values);
+      }
+      ValueKey key = new ValueKey(val);
+      List l = (List) values.get(key);
+      if (l == null && create) {
+        l = new ArrayList();
+        values.put(key, l);
+      }
+      return l;
+    }
+    return anyObject;
+  }
+
+  /** Hands a correlated object to a request. A listener is added to the
+   * matched list to be notified, a Waiter is offered the object at once.
+   * Returns true if the request is done and must be removed. */
+  static boolean accept(Object[] request, SpaceObj obj, List matched) {
+    if (request[1] instanceof Waiter) {
+      return ( (Waiter) request[1]).offer(obj);
+    }
+    matched.add(request);
+    return true;
+  }
+
+  /** Hands the object to the requests it correlates with, and removes the
+   * requests that are done */
+  void removeMatching(SpaceObj obj, List matched) {
+    Iterator i = anyObject.iterator();
+    while (i.hasNext()) {
+      if (accept( (Object[]) i.next(), obj, matched)) {
+        i.remove();
+      }
+    }
+    i = byField.entrySet().iterator();
+    while (i.hasNext()) {
+      Map.Entry m = (Map.Entry) i.next();
+      Map values = (Map) m.getValue();
+      ValueKey key = new ValueKey(obj.getValue( (Field) m.getKey()));
+      List l = (List) values.get(key);
+      if (l == null) {
+        continue;
+      }
+      Iterator i2 = l.iterator();
+      while (i2.hasNext()) {
+        Object[] o = (Object[]) i2.next();
+        if (SpaceObj.correlates(obj, (SpaceObj) o[0]) &&
+            accept(o, obj, matched)) {
+          i2.remove();
+        }
+      }
+      if (l.isEmpty()) {
+        values.remove(key);
+        if (values.isEmpty()) {
+          i.remove();
+        }
+      }
+    }
+  }
+
+  boolean isEmpty() {
+    return byField.isEmpty() && anyObject.isEmpty();
+  }
+}
@@ -1,5 +1,9 @@
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
 /**
  * <p>Title: SpaceField </p>
  * <p>Description: The first level of the system.
@@ -12,7 +16,23 @@ public class SpaceField {
   private RWSemaphore sem;
 
   /** All existing values of the field are kept in this table */
-  private Hashtable allValues;
+  private Map allValues;
+
+  /** True if the field is of a primitive type or a boxed one. Its values are
+   * kept by their bits in numericValues instead of allValues, so no key is
+   * created for a lookup. */
+  private final boolean numeric;
+
+  /** The values of a numeric field by their bits. Changed under the writer
+   * lock, read under the lock or optimistically. */
+  private final LongMap numericValues;
+
+  /** The null value of a numeric field, or null */
+  private volatile FieldValue nullValue;
+
+  /** The non null values of a Comparable field in their order, for range
+   * queries. Null if the field is not Comparable. */
+  private final ConcurrentSkipListMap sortedValues;
 
   /** Name of this field  */
   private Field field;
@@ -23,80 +43,185 @@ public class SpaceField {
   /** System cleaner for upper levels */
   private CleaningTask cleaningTask;
 
+  /** Stored sub-classes of every class */
+  private ClassHierarchy hierarchy;
+
+  /** The order objects are taken in, null if unordered */
+  private TakeOrder order;
+
+  /** All the objects under this field in the take order, null if unordered.
+   * A template without values takes the first match in it, without going
+   * over the values. */
+  private final ConcurrentSkipListSet ordered;
+
+  /** Number of entries under this field, of lookups in its values and of
+   * the objects they went over. Striped counters, so the threads counting
+   * don't contend. */
+  private final LongAdder entries = new LongAdder();
+  private final LongAdder lookups = new LongAdder();
+  private final LongAdder scanned = new LongAdder();
+
+  /** Records the waits for the locks of the values, null if not recorded */
+  private final LockMetrics valueLocks;
+
+  /** True once the cleaner removed this field from the database. Set under
+   * the writer lock, then the field takes no more entries. */
+  private boolean retired = false;
+
 
   public SpaceField(Field field, DisposalsThread disposalsThread,
-                    CleaningTask cleaningTask){
+                    CleaningTask cleaningTask, ClassHierarchy hierarchy,
+                    TakeOrder order, SpaceMetrics metrics){
     this.field = field;
-    this.sem = new RWSemaphore();
-    this.allValues = new Hashtable();
+    this.sem = new RWSemaphore(metrics == null ? null : metrics.fieldLocks);
+    this.valueLocks = metrics == null ? null : metrics.valueLocks;
+    this.allValues = new ConcurrentHashMap();
+    this.numeric = isNumeric(field.getType());
+    this.numericValues = numeric ? new LongMap() : null;
+    this.sortedValues = isOrdered(field.getType()) ?
+        new ConcurrentSkipListMap() : null;
     this.disposalsThread = disposalsThread;
     this.cleaningTask = cleaningTask;
+    this.hierarchy = hierarchy;
+    this.order = order;
+    this.ordered = order == null ? null : new ConcurrentSkipListSet(order);
   }
 
   /** Adds a new entry to this SpaceField. If the value of this field
-   * does not exists, a new value is created. */
-  public void addEntry(SpaceObj obj) {
-    sem.aquireReadersLock();
-    try {
-      Object val = field.get(obj.getEntry());
-      FieldValue fieldValue = (FieldValue) allValues.get(new ValueKey(val));
-      sem.releaseLock();
+   * does not exists, a new value is created. The entry is added under the
+   * read lock, so the cleaner can't remove its value or this field
+   * meanwhile. Returns false if this field was retired, then the caller
+   * adds the entry to the field that replaced it. */
+  public boolean addEntry(SpaceObj obj) {
+    Object val = obj.getValue(field);
+    for (; ; ) {
+      sem.aquireReadersLock();
+      if (retired) {
+        sem.releaseLock();
+        return false;
+      }
+      FieldValue fieldValue = lookup(val);
       if (fieldValue != null) {
         fieldValue.addEntry(obj);
-        return;
+        sem.releaseLock();
+        return true;
       }
+      sem.releaseLock();
       //things might be changed now, so we'll re-check
       sem.aquireWriterLock();
-      //re-check
-      if (fieldValue != null) {
-        sem.releaseLock();
-        fieldValue.addEntry(obj);
-        return;
+      if (!retired && lookup(val) == null) {
+        //create new key
+        putValue(val, new FieldValue(val, this, hierarchy, order));
       }
-      //create new key
-      fieldValue = new FieldValue(val, disposalsThread);
-      allValues.put(new ValueKey(val), fieldValue);
       sem.releaseLock();
-      fieldValue.addEntry(obj);
-      return;
     }
-    catch (Exception ex) {
+  }
+
+  /** Adds a batch of entries to this SpaceField. The entries are grouped by
+   * value, this level is locked once to find the values, and once more to
+   * create the missing ones, then every FieldValue gets its group under the
+   * read lock. Returns false if this field was retired. */
+  public boolean addEntries(List objs) {
+    Map byValue = new HashMap();
+    Iterator i = objs.iterator();
+    while (i.hasNext()) {
+      SpaceObj obj = (SpaceObj) i.next();
+      ValueKey key = new ValueKey(obj.getValue(field));
+      List l = (List) byValue.get(key);
+      if (l == null) {
+        l = new ArrayList();
+        byValue.put(key, l);
+      }
+      l.add(obj);
+    }
+    Map values = new HashMap();
+    for (; ; ) {
+      boolean missing = false;
+      sem.aquireReadersLock();
+      if (retired) {
+        sem.releaseLock();
+        return false;
+      }
+      i = byValue.keySet().iterator();
+      while (i.hasNext()) {
+        ValueKey key = (ValueKey) i.next();
+        FieldValue fieldValue = lookup(key.value);
+        if (fieldValue == null) {
+          missing = true;
+          break;
+        }
+        values.put(key, fieldValue);
+      }
+      if (!missing) {
+        i = values.entrySet().iterator();
+        while (i.hasNext()) {
+          Map.Entry m = (Map.Entry) i.next();
+          ( (FieldValue) m.getValue()).addEntries( (List) byValue.get(m.getKey()));
+        }
+        sem.releaseLock();
+        return true;
+      }
+      sem.releaseLock();
+      sem.aquireWriterLock();
+      if (!retired) {
+        i = byValue.keySet().iterator();
+        while (i.hasNext()) {
+          ValueKey key = (ValueKey) i.next();
+          if (lookup(key.value) == null) {
+            putValue(key.value,
+                     new FieldValue(key.value, this, hierarchy, order));
+          }
+        }
+      }
       sem.releaseLock();
-      System.out.println("Error: adding Entry  " + ex.toString());
-      ex.printStackTrace();
     }
   }
 
   /** Finds an object from this data structure that correlates with the given
    * template. The query is taken from the upper level and propagated to
    * the lower system.  */
-  public Entry findCorellatedEntry(SpaceObj template, boolean take) {
+  public SpaceObj findCorellatedObj(SpaceObj template, boolean take) {
     sem.aquireReadersLock();
     try {
       // if all the public fields are empty
-      if(template.getObjFields().isEmpty()){
-        Iterator i = allValues.entrySet().iterator();
+      if(!template.hasValues() && order != null){
+        SpaceObj obj = findFirst(template, take);
+        sem.releaseLock();
+        return obj;
+      }
+      if(!template.hasValues() && numeric){
+        FieldValue nullFieldValue = nullValue;
+        SpaceObj obj = nullFieldValue == null ? null :
+            nullFieldValue.findCorellatedObj(template, take);
+        // the slots are gone over in place, nothing is copied
+        Object[] slots = numericValues.slots();
+        for (int slot = 0; obj == null && slot < slots.length; slot++) {
+          if (slots[slot] != null) {
+            obj = ( (FieldValue) slots[slot]).findCorellatedObj(template,
+                take);
+          }
+        }
+        sem.releaseLock();
+        return obj;
+      }
+      if(!template.hasValues()){
+        Iterator i = allValues.values().iterator();
         while(i.hasNext()){
-          Map.Entry m = (Map.Entry)i.next();
-          FieldValue fieldValue = (FieldValue) m.getValue();
-          Entry e = fieldValue.findCorellatedEntry(template, take);
-          if (e!=null){
+          FieldValue fieldValue = (FieldValue) i.next();
+          SpaceObj obj = fieldValue.findCorellatedObj(template, take);
+          if (obj!=null){
             sem.releaseLock();
-            return e;
+            return obj;
           }
         }
         sem.releaseLock();
         return null;
       }
 
-      Object val = field.get(template.getEntry());
-      FieldValue fieldValue = (FieldValue) allValues.get(new ValueKey(val));
+      FieldValue fieldValue = getFieldValue(template);
       sem.releaseLock();
       if (fieldValue != null) {
-        if (fieldValue.isEmpty()) {
-          cleaningTask.addValue(fieldValue, this);
-        }
-        return fieldValue.findCorellatedEntry(template, take);
+        return fieldValue.findCorellatedObj(template, take);
       }
     }
     catch (Exception ex) {
@@ -107,6 +232,179 @@ public class SpaceField {
     return null;
   }
 
+  /** Finds the first object in the take order of this field that
+   * correlates with a template whose public fields are all null. Only the
+   * objects taken and not disposed yet, and those of other sub-classes, are
+   * gone over before it. Needs no lock. */
+  private SpaceObj findFirst(SpaceObj template, boolean take) {
+    int examined = 0;
+    Iterator i = ordered.iterator();
+    while (i.hasNext()) {
+      SpaceObj obj = (SpaceObj) i.next();
+      examined++;
+      // another thread may take it meanwhile, then go on
+      if (template.getObjClass().isAssignableFrom(obj.getObjClass()) &&
+          obtain(obj, take)) {
+        countLookup(examined);
+        return obj;
+      }
+    }
+    countLookup(examined);
+    return null;
+  }
+
+  /** Returns true if the object is valid. If take flag is on, the object is
+   * marked as not valid and DisposalsThread is notified. */
+  boolean obtain(SpaceObj obj, boolean take) {
+    synchronized (obj) {
+      if (!obj.isValid()) {
+        return false;
+      }
+      if (take) {
+        obj.invalidate();
+        obj.cancelLease();
+        disposalsThread.addObj(obj);
+      }
+    }
+    return true;
+  }
+
+  /** Adds an object of one of the values to the take order of this field */
+  void addOrdered(SpaceObj obj) {
+    if (ordered != null) {
+      ordered.add(obj);
+    }
+  }
+
+  /** Removes a disposed object from the take order of this field */
+  void removeOrdered(SpaceObj obj) {
+    if (ordered != null) {
+      ordered.remove(obj);
+    }
+  }
+
+  /** Adds to the found list up to max objects that correlate with the
+   * template and whose value of this field is in the range. Only the values
+   * in the range are looked in, if the field is ordered. */
+  public void findInRange(Range range, SpaceObj template, boolean take,
+                          int max, List found) {
+    Collection inRange = null;
+    if (sortedValues != null) {
+      try {
+        inRange = range.subMap(sortedValues).values();
+      }
+      catch (RuntimeException ex) {
+        // bounds not comparable with the values, look in all of them
+      }
+    }
+    if (inRange == null) {
+      findCorellatedEntries(template, take, max, found, null);
+      return;
+    }
+    sem.aquireReadersLock();
+    Iterator i = inRange.iterator();
+    while (i.hasNext() && found.size() < max) {
+      ( (FieldValue) i.next()).findCorellatedEntries(template, take, max, found,
+          null);
+    }
+    sem.releaseLock();
+  }
+
+  /** Adds to the found list up to max objects that correlate with a template
+   * whose public fields are all null. Every FieldValue is locked once.
+   * Objects in seen, by id, don't count, seen is null if an object can't be
+   * found twice. */
+  public void findCorellatedEntries(SpaceObj template, boolean take, int max,
+                                    List found, LongMap seen) {
+    sem.aquireReadersLock();
+    if (numeric) {
+      FieldValue nullFieldValue = nullValue;
+      if (nullFieldValue != null) {
+        nullFieldValue.findCorellatedEntries(template, take, max, found, seen);
+      }
+      Object[] slots = numericValues.slots();
+      for (int slot = 0; slot < slots.length && found.size() < max; slot++) {
+        if (slots[slot] != null) {
+          ( (FieldValue) slots[slot]).findCorellatedEntries(template, take,
+              max, found, seen);
+        }
+      }
+    }
+    else {
+      Iterator i = allValues.values().iterator();
+      while (i.hasNext() && found.size() < max) {
+        ( (FieldValue) i.next()).findCorellatedEntries(template, take, max,
+            found, seen);
+      }
+    }
+    sem.releaseLock();
+  }
+
+  /** Finds an object that correlates with the given template without locking
+   * this level or the FieldValues. Throws OptimisticReadConflict if a writer
+   * changed one of them meanwhile. */
+  public SpaceObj readOptimistic(SpaceObj template) {
+    long stamp = sem.tryOptimisticRead();
+    SpaceObj obj = null;
+    // if all the public fields are empty
+    if (!template.hasValues() && order != null) {
+      obj = findFirst(template, false);
+    }
+    else if (!template.hasValues() && numeric) {
+      FieldValue nullFieldValue = nullValue;
+      if (nullFieldValue != null) {
+        obj = nullFieldValue.readOptimistic(template);
+      }
+      Object[] slots = numericValues.slots();
+      for (int slot = 0; obj == null && slot < slots.length; slot++) {
+        if (slots[slot] != null) {
+          obj = ( (FieldValue) slots[slot]).readOptimistic(template);
+        }
+      }
+    }
+    else if (!template.hasValues()) {
+      Iterator i = allValues.values().iterator();
+      while (obj == null && i.hasNext()) {
+        obj = ( (FieldValue) i.next()).readOptimistic(template);
+      }
+    }
+    else {
+      FieldValue fieldValue = getFieldValue(template);
+      if (fieldValue != null) {
+        obj = fieldValue.readOptimistic(template);
+      }
+    }
+    if (!sem.validate(stamp)) {
+      throw new OptimisticReadConflict();
+    }
+    return obj;
+  }
+
+  /** Returns the FieldValue of the template's value of this field, or null
+   * if no object has this value. allValues is a concurrent map, so a single
+   * lookup needs no lock. numericValues is read optimistically, and under
+   * the lock if a writer interferes. */
+  public FieldValue getFieldValue(SpaceObj template) {
+    Object val = template.getValue(field);
+    FieldValue fieldValue;
+    if (!numeric || val == null) {
+      fieldValue = lookup(val);
+    }
+    else {
+      long stamp = sem.tryOptimisticRead();
+      fieldValue = lookup(val);
+      if (!sem.validate(stamp)) {
+        sem.aquireReadersLock();
+        fieldValue = lookup(val);
+        sem.releaseLock();
+      }
+    }
+    if (fieldValue != null && fieldValue.isEmpty()) {
+      cleaningTask.addValue(fieldValue, this);
+    }
+    return fieldValue;
+  }
+
   /** Retruns true if this SpaceField is cached be a writer */
   public  boolean lockedByWriter() {
     return sem.lockedByWriter();
@@ -128,47 +426,194 @@ public class SpaceField {
     while (i.hasNext()) {
       FieldValue fv = (FieldValue) i.next();
       if (fv.isEmpty()) {
-         allValues.remove(new ValueKey(fv.getValue()));
+        removeValue(fv.getValue());
       }
     }
     sem.releaseLock();
   }
 
-  /** Returns true if no value exists for this field */
-  public boolean isEmpty() {
+  /** Returns the metrics of the locks of the values, or null */
+  LockMetrics getValueLocks() {
+    return valueLocks;
+  }
+
+  /** Counts entries added to the values of this field, or removed if
+   * negative */
+  void countEntries(int n) {
+    entries.add(n);
+  }
+
+  /** Counts a lookup in a value of this field, and the objects it went over */
+  void countLookup(int examined) {
+    lookups.increment();
+    scanned.add(examined);
+  }
+
+  /** Counts objects a lookup went over */
+  void countScanned(int examined) {
+    scanned.add(examined);
+  }
+
+  /** Returns the number of entries under this field */
+  public long getEntries() {
+    return entries.sum();
+  }
+
+  /** Returns a snapshot of the statistics of this field and its values,
+   * with up to topValues of the largest values */
+  public FieldStats getStats(int topValues) {
+    Map classSizes = new TreeMap();
+    List values = new ArrayList();
     sem.aquireReadersLock();
-    boolean b = allValues.isEmpty();
+    Iterator i = getFieldValues().iterator();
+    while (i.hasNext()) {
+      FieldValue fv = (FieldValue) i.next();
+      values.add(fv);
+      fv.addClassSizes(classSizes);
+    }
     sem.releaseLock();
-    return b;
+    Collections.sort(values, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        return ( (FieldValue) o2).size() - ( (FieldValue) o1).size();
+      }
+    });
+    int n = Math.max(0, Math.min(topValues, values.size()));
+    String[] largestValues = new String[n];
+    int[] largestSizes = new int[n];
+    for (int j = 0; j < n; j++) {
+      FieldValue fv = (FieldValue) values.get(j);
+      largestValues[j] = String.valueOf(fv.getValue());
+      largestSizes[j] = fv.size();
+    }
+    return new FieldStats(field.getDeclaringClass().getName(),
+                          field.getName(), entries.sum(), values.size(),
+                          classSizes, largestValues, largestSizes,
+                          lookups.sum(), scanned.sum());
   }
 
-  public boolean equals(Object o) {
-    return (o instanceof SpaceField) &&
-        (this.field.getName().equals( ( (SpaceField) o).field.getName())) &&
-        (this.field.getDeclaringClass().equals( ( (SpaceField) o).field.
-                                               getDeclaringClass()));
+  /** Retires this field if no value exists for it, under the writer lock.
+   * A retired field takes no more entries, the caller removes it from the
+   * database. Returns true if it was retired. */
+  public boolean retire() {
+    sem.aquireWriterLock();
+    if (isEmpty()) {
+      retired = true;
+    }
+    sem.releaseLock();
+    return retired;
   }
 
-}
+  /** Returns true if no value exists for this field */
+  public boolean isEmpty() {
+    if (numeric) {
+      return numericValues.isEmpty() && nullValue == null;
+    }
+    return allValues.isEmpty();
+  }
 
-/**
-*  ValueKey is used as key for the SpaceField hashtable.
- */
-class ValueKey {
-  public final Object value;
+  /** Returns the FieldValue of the value, or null.
+   * Called with the lock held, or optimistically. */
+  private FieldValue lookup(Object val) {
+    if (!numeric) {
+      ValueKey key = ValueKey.probe(val);
+      FieldValue fieldValue = (FieldValue) allValues.get(key);
+      key.value = null;
+      return fieldValue;
+    }
+    if (val == null) {
+      return nullValue;
+    }
+    return (FieldValue) numericValues.get(bits(val));
+  }
 
-  ValueKey(Object value) {
-    this.value = value;
+  /** Adds the FieldValue of a new value. Called with the writer lock held. */
+  private void putValue(Object val, FieldValue fieldValue) {
+    if (sortedValues != null && val != null) {
+      sortedValues.put(val, fieldValue);
+    }
+    if (!numeric) {
+      allValues.put(new ValueKey(val), fieldValue);
+    }
+    else if (val == null) {
+      nullValue = fieldValue;
+    }
+    else {
+      numericValues.put(bits(val), fieldValue);
+    }
   }
 
-  public boolean equals(Object o) {
-    if (value == null)
-      return (o == null);
-    return (o instanceof ValueKey) &&
-        (this.value.equals( ( (ValueKey) o).value));
+  /** Removes the FieldValue of a value. Called with the writer lock held. */
+  private void removeValue(Object val) {
+    if (sortedValues != null && val != null) {
+      sortedValues.remove(val);
+    }
+    if (!numeric) {
+      allValues.remove(new ValueKey(val));
+    }
+    else if (val == null) {
+      nullValue = null;
+    }
+    else {
+      numericValues.remove(bits(val));
+    }
   }
 
-  public int hashCode() {
-    return value == null ? Integer.MAX_VALUE : value.hashCode();
+  /** Returns all the FieldValues of this field, for the statistics. The
+   * values of a numeric field are copied, the lookups go over them in
+   * place. Called with the lock held. */
+  private Collection getFieldValues() {
+    if (!numeric) {
+      return allValues.values();
+    }
+    List l = new ArrayList(numericValues.size() + 1);
+    if (nullValue != null) {
+      l.add(nullValue);
+    }
+    for (int slot = 0; slot < numericValues.capacity(); slot++) {
+      Object fv = numericValues.valueAt(slot);
+      if (fv != null) {
+        l.add(fv);
+      }
+    }
+    return l;
   }
+
+  /** Returns true if the values of the type are of a single Comparable class */
+  private static boolean isOrdered(Class type) {
+    return type.isPrimitive() || type.isEnum() ||
+        (Comparable.class.isAssignableFrom(type) &&
+         Modifier.isFinal(type.getModifiers()));
+  }
+
+  /** Returns true if values of the type are kept by their bits */
+  private static boolean isNumeric(Class type) {
+    return type.isPrimitive() || type == Integer.class || type == Long.class ||
+        type == Short.class || type == Byte.class || type == Character.class ||
+        type == Boolean.class || type == Double.class || type == Float.class;
+  }
+
+  /** Returns the bits of a numeric value, equal values have equal bits */
+  private static long bits(Object val) {
+    if (val instanceof Double) {
+      return Double.doubleToLongBits( ( (Double) val).doubleValue());
+    }
+    if (val instanceof Float) {
+      return Float.floatToIntBits( ( (Float) val).floatValue());
+    }
+    if (val instanceof Character) {
+      return ( (Character) val).charValue();
+    }
+    if (val instanceof Boolean) {
+      return ( (Boolean) val).booleanValue() ? 1 : 0;
+    }
+    return ( (Number) val).longValue();
+  }
+
+  public boolean equals(Object o) {
+    return (o instanceof SpaceField) &&
+        (this.field.getName().equals( ( (SpaceField) o).field.getName())) &&
+        (this.field.getDeclaringClass().equals( ( (SpaceField) o).field.
+                                               getDeclaringClass()));
+  }
+
 }
@@ -0,0 +1,404 @@
+import java.math.BigDecimal;
+import java.rmi.*;
+import java.rmi.registry.*;
+import java.rmi.server.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Title: SpaceLoad </p>
+ * <p>Description: Generates load on a space through RMI, the way its
+ * clients see it. It starts a registry and a SpaceServer, unless load.host
+ * names the host of a running one, and runs client threads doing a mix of
+ * write, read, take and register at a fixed total rate. The latency of an
+ * operation is counted from the time it was due to start, not from the
+ * time it started, so a stall of the space is charged to all the
+ * operations it held back (coordinated omission). The report gives the
+ * throughput and the p50/p99/p999 of every operation, and the exit status
+ * is 1 if they exceed the given limits.
+ * The settings are system properties:
+ * load.host, load.port, load.threads, load.rate (operations per second of
+ * all the threads, 0 runs them back to back), load.mix (weights, like
+ * write:40,read:40,take:15,register:5), load.keys (distinct keys),
+ * load.payload (bytes per entry), load.preload, load.warmup and
+ * load.seconds, and load.slo (limits in microseconds, like
+ * p99:2000,p99.9:10000).</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class SpaceLoad {
+
+  /** The entries written by the load */
+  public static class LoadEntry implements Entry {
+    private static final long serialVersionUID = 1L;
+
+    public Integer key;
+    public String payload;
+  }
+
+  private final ISpaceServer space;
+  private final LoadOp[] ops;
+  private final int totalWeight;
+  private final int keys;
+  private final String payload;
+  private final LoadListener listener;
+
+  public SpaceLoad(ISpaceServer space, LoadOp[] ops, int keys,
+                   int payloadSize) throws RemoteException {
+    this.space = space;
+    this.ops = ops;
+    int weight = 0;
+    for (int i = 0; i < ops.length; i++) {
+      weight += ops[i].weight;
+    }
+    this.totalWeight = weight;
+    this.keys = keys;
+    char[] chars = new char[payloadSize];
+    Arrays.fill(chars, 'x');
+    this.payload = new String(chars);
+    this.listener = new LoadListener();
+  }
+
+  public static void main(String[] args) throws Exception {
+    String host = System.getProperty("load.host");
+    int port = Integer.getInteger("load.port", Registry.REGISTRY_PORT).
+        intValue();
+    int threads = Integer.getInteger("load.threads", 16).intValue();
+    int rate = Integer.getInteger("load.rate", 10000).intValue();
+    int keys = Integer.getInteger("load.keys", 10000).intValue();
+    int payloadSize = Integer.getInteger("load.payload", 100).intValue();
+    int preload = Integer.getInteger("load.preload", 10000).intValue();
+    long warmup = Integer.getInteger("load.warmup", 5).intValue() * 1000L;
+    long seconds = Integer.getInteger("load.seconds", 30).intValue() * 1000L;
+    LoadOp[] ops = LoadOp.parse(System.getProperty("load.mix",
+        "write:40,read:40,take:15,register:5"));
+    Map slo = parseSlo(System.getProperty("load.slo", ""));
+    if (seconds <= 0) {
+      throw new IllegalArgumentException("load.seconds must be positive");
+    }
+    if (threads <= 0 || rate < 0 || warmup < 0) {
+      throw new IllegalArgumentException(
+          "load.threads must be positive, load.rate and load.warmup must not " +
+          "be negative");
+    }
+
+    if (host == null) {
+      host = "localhost";
+      Registry r = LocateRegistry.createRegistry(port);
+      SpaceServer server = new SpaceServer();
+      server.init(r);
+    }
+    ISpaceServer space = (ISpaceServer) LocateRegistry.getRegistry(host, port).
+        lookup("Space");
+
+    SpaceLoad load = new SpaceLoad(space, ops, keys, payloadSize);
+    load.preload(preload);
+    load.run(threads, rate, warmup, seconds);
+    load.report(seconds);
+    System.exit(load.checkSlo(slo) ? 0 : 1);
+  }
+
+  /** Writes entries before the load starts, so reads and takes find some.
+   * ISpaceServer has no batch write, so they are written one by one. */
+  void preload(int n) throws RemoteException {
+    Random rnd = new Random(n);
+    for (int i = 0; i < n; i++) {
+      space.write(newEntry(rnd), LoadOp.LEASE);
+    }
+  }
+
+  /** Runs the client threads for the warmup and the measured time. Every
+   * thread has its share of the rate, and its operations are due at fixed
+   * intervals from the start. */
+  void run(int threadNo, int rate, long warmupMillis, long measureMillis) throws
+      InterruptedException {
+    final long interval = rate > 0 ? 1000000000L * threadNo / rate : 0;
+    final long start = System.nanoTime();
+    final long measureFrom = start + warmupMillis * 1000000L;
+    final long end = measureFrom + measureMillis * 1000000L;
+    Thread[] threads = new Thread[threadNo];
+    for (int i = 0; i < threadNo; i++) {
+      final Random rnd = new Random(i);
+      // the threads are spread over the interval, not due all at once
+      final long first = start + interval * i / threadNo;
+      threads[i] = new Thread() {
+        public void run() {
+          long due = first;
+          while (true) {
+            LoadOp op = pick(rnd);
+            Entry e = op.kind == LoadOp.WRITE ? newEntry(rnd) :
+                newTemplate(rnd);
+            long now = System.nanoTime();
+            if (interval > 0) {
+              while (now < due) {
+                LockSupport.parkNanos(due - now);
+                now = System.nanoTime();
+              }
+            }
+            else {
+              due = now;
+            }
+            if (due >= end) {
+              return;
+            }
+            try {
+              op.run(space, e, listener);
+            }
+            catch (RemoteException ex) {
+              if (op.errors.getAndIncrement() == 0) {
+                System.out.println("Error in " + op.name + ": " + ex.toString());
+                ex.printStackTrace();
+              }
+            }
+            long done = System.nanoTime();
+            if (due >= measureFrom) {
+              op.latency.record(done - due);
+              op.service.record(done - now);
+            }
+            due += interval;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; i++) {
+      threads[i].join();
+    }
+  }
+
+  /** Picks an operation by the weights of the mix */
+  private LoadOp pick(Random rnd) {
+    int w = rnd.nextInt(totalWeight);
+    for (int i = 0; i < ops.length; i++) {
+      w -= ops[i].weight;
+      if (w < 0) {
+        return ops[i];
+      }
+    }
+    return ops[ops.length - 1];
+  }
+
+  private Entry newEntry(Random rnd) {
+    LoadEntry e = new LoadEntry();
+    e.key = Integer.valueOf(rnd.nextInt(keys));
+    e.payload = payload;
+    return e;
+  }
+
+  private Entry newTemplate(Random rnd) {
+    LoadEntry t = new LoadEntry();
+    t.key = Integer.valueOf(rnd.nextInt(keys));
+    return t;
+  }
+
+  /** Prints the throughput and the latencies of every operation. The
+   * latency counts from the time an operation was due, the service time
+   * from the time it started. */
+  void report(long measureMillis) {
+    System.out.println(pad("op", -9) + pad("count", 10) + pad("ops/s", 9) +
+                       pad("p50(us)", 10) + pad("p99(us)", 10) +
+                       pad("p999(us)", 10) + pad("max(us)", 10) +
+                       pad("svc-p99(us)", 13) + pad("errors", 8));
+    long total = 0;
+    for (int i = 0; i < ops.length; i++) {
+      LoadOp op = ops[i];
+      long count = op.latency.getCount();
+      total += count;
+      System.out.println(pad(op.name, -9) +
+                         pad(String.valueOf(count), 10) +
+                         pad(String.valueOf(count * 1000 / measureMillis), 9) +
+                         pad(micros(op.latency.getP50Micros()), 10) +
+                         pad(micros(op.latency.getP99Micros()), 10) +
+                         pad(micros(op.latency.getP999Micros()), 10) +
+                         pad(micros(op.latency.getMaxMicros()), 10) +
+                         pad(micros(op.service.getP99Micros()), 13) +
+                         pad(String.valueOf(op.errors.get()), 8));
+    }
+    System.out.println("total " + total + " operations, " +
+                       total * 1000 / measureMillis + " ops/s, " +
+                       listener.notified.get() + " notifications");
+  }
+
+  /** Parses limits like p50:500,p99:2000,p99.9:10000 in microseconds into
+   * a map from the percentile to its limit, in order. Called before the
+   * load starts, so a bad limit doesn't fail the run once it is over. */
+  static Map parseSlo(String slo) {
+    Map limits = new LinkedHashMap();
+    if (slo.trim().length() == 0) {
+      return limits;
+    }
+    String[] items = slo.split(",");
+    for (int i = 0; i < items.length; i++) {
+      String[] item = items[i].split(":");
+      if (item.length != 2) {
+        throw new IllegalArgumentException("Bad load.slo limit " + items[i]);
+      }
+      String percentile = item[0].trim();
+      LoadOp.fraction(percentile);
+      double max;
+      try {
+        max = Double.parseDouble(item[1].trim());
+      }
+      catch (NumberFormatException ex) {
+        throw new IllegalArgumentException("Bad load.slo limit " + items[i]);
+      }
+      if (Double.isNaN(max) || max < 0) {
+        throw new IllegalArgumentException("Bad load.slo limit " + items[i]);
+      }
+      limits.put(percentile, Double.valueOf(max));
+    }
+    return limits;
+  }
+
+  /** Returns true if the latencies of all the operations are within the
+   * limits parsed by parseSlo */
+  boolean checkSlo(Map limits) {
+    boolean ok = true;
+    Iterator i = limits.entrySet().iterator();
+    while (i.hasNext()) {
+      Map.Entry limit = (Map.Entry) i.next();
+      String percentile = (String) limit.getKey();
+      double max = ( (Double) limit.getValue()).doubleValue();
+      for (int j = 0; j < ops.length; j++) {
+        double value = ops[j].percentileMicros(percentile);
+        if (value > max) {
+          System.out.println("SLO missed: " + ops[j].name + " " + percentile +
+                             " " + micros(value) + "us > " + micros(max) +
+                             "us");
+          ok = false;
+        }
+      }
+    }
+    return ok;
+  }
+
+  private static String micros(double value) {
+    return String.valueOf(Math.round(value * 10) / 10.0);
+  }
+
+  /** Pads to the given width, on the right if it is negative */
+  private static String pad(String s, int width) {
+    StringBuffer b = new StringBuffer();
+    for (int i = s.length(); i < Math.abs(width); i++) {
+      b.append(' ');
+    }
+    return width < 0 ? s + b : b + s;
+  }
+}
+
+/**
+ *  LoadOp is an operation of the mix, with its weight and the latencies
+ *  counted for it.
+ */
+class LoadOp {
+  static final int WRITE = 0;
+  static final int READ = 1;
+  static final int TAKE = 2;
+  static final int REGISTER = 3;
+
+  private static final String[] NAMES = {
+      "write", "read", "take", "register"};
+
+  /** Lease of the written entries, in minutes */
+  static final Integer LEASE = Integer.valueOf(60);
+
+  final String name;
+  final int kind;
+  final int weight;
+
+  /** Time since the operation was due, and since it started */
+  final LatencyHistogram latency = new LatencyHistogram();
+  final LatencyHistogram service = new LatencyHistogram();
+
+  final AtomicLong errors = new AtomicLong();
+
+  LoadOp(int kind, int weight) {
+    this.name = NAMES[kind];
+    this.kind = kind;
+    this.weight = weight;
+  }
+
+  /** Parses a mix like write:40,read:40,take:15,register:5 */
+  static LoadOp[] parse(String mix) {
+    List ops = new ArrayList();
+    String[] items = mix.split(",");
+    for (int i = 0; i < items.length; i++) {
+      String[] item = items[i].split(":");
+      int kind = Arrays.asList(NAMES).indexOf(item[0].trim());
+      if (kind < 0) {
+        throw new IllegalArgumentException("Unknown operation " + item[0]);
+      }
+      int weight = Integer.parseInt(item[1].trim());
+      if (weight > 0) {
+        ops.add(new LoadOp(kind, weight));
+      }
+    }
+    if (ops.isEmpty()) {
+      throw new IllegalArgumentException("Empty mix " + mix);
+    }
+    return (LoadOp[]) ops.toArray(new LoadOp[ops.size()]);
+  }
+
+  void run(ISpaceServer space, Entry e, RemoteEventListener l) throws
+      RemoteException {
+    switch (kind) {
+      case WRITE:
+        space.write(e, LEASE);
+        break;
+      case READ:
+        space.read(e);
+        break;
+      case TAKE:
+        space.take(e);
+        break;
+      default:
+        space.register(e, l);
+    }
+  }
+
+  /** Returns a percentile named like p99, in microseconds */
+  double percentileMicros(String percentile) {
+    return latency.percentile(fraction(percentile)) / 1000.0;
+  }
+
+  /** Returns the fraction of a percentile named like p50, p99.9 or p999.
+   * A number with a point, or up to 100, is a percentage; other numbers
+   * are the digits of the fraction, so p999 is 0.999 and p9999 0.9999. */
+  static double fraction(String percentile) {
+    String number = percentile.startsWith("p") ? percentile.substring(1) : "";
+    if (!number.matches("[0-9]+(\\.[0-9]+)?")) {
+      throw new IllegalArgumentException("Bad percentile " + percentile +
+                                         ", expected like p99 or p99.9");
+    }
+    // moved in decimal, so p99.9 is the double nearest 0.999
+    BigDecimal n = new BigDecimal(number);
+    boolean percentage = number.indexOf('.') >= 0 ||
+        n.compareTo(BigDecimal.valueOf(100)) <= 0;
+    double fraction = n.movePointLeft(percentage ? 2 : number.length()).
+        doubleValue();
+    if (fraction > 1) {
+      throw new IllegalArgumentException("Bad percentile " + percentile);
+    }
+    return fraction;
+  }
+}
+
+/**
+ *  LoadListener is the remote listener of the registered templates, it
+ *  only counts the notifications.
+ */
+class LoadListener
+    extends UnicastRemoteObject
+    implements RemoteEventListener {
+
+  private static final long serialVersionUID = 1L;
+
+  final AtomicLong notified = new AtomicLong();
+
+  LoadListener() throws RemoteException {
+  }
+
+  public void notify(Entry e) {
+    notified.incrementAndGet();
+  }
+}
@@ -0,0 +1,570 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Title: SpaceLog </p>
+ * <p>Description: A write ahead log of the space. Every written entry,
+ * every registered request and every removal (take, expiration or
+ * notification) is appended as a checksummed record.
+ * This thread writes the records appended meanwhile together and syncs the
+ * file once for all of them (group commit). When the file grows much bigger
+ * than its live records, they are copied to a new file that replaces it,
+ * a slice at a time between the batches, so the syncs don't wait for the
+ * whole copy. The records appended meanwhile are copied after them.
+ * The log is also the snapshot the space restarts from: a WRITE record
+ * holds the field values in the EntryCodec layout, so at restart the objects
+ * are indexed from the mapped file, and entries the codec can't rebuild
+ * are deserialized lazily. If the file can't be written, the log stops and
+ * every sync waiting for records not on disk fails.
+ * It is powered by a producers/consumer mechanism </p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class SpaceLog
+    extends Thread {
+
+  /** Record types */
+  private static final byte WRITE = 1;
+  private static final byte REMOVE = 2;
+  private static final byte REGISTER = 3;
+
+  /** Size of the record header: body length, type and object id */
+  private static final int HEADER = 4 + 1 + 8;
+
+  /** Offsets in a WRITE record body of the expiration time and the class
+   * name. The class name is followed by the layout signature and the field
+   * values written by the EntryCodec, then the serialized entry if the codec
+   * can't rebuild it. */
+  private static final int EXPIRATION = 1 + 8;
+  private static final int CLASS_NAME = EXPIRATION + 8;
+
+  /** Maximal size of a mapped region of the log read at restart */
+  private static final int MAP_SIZE = 1 << 30;
+
+  /** The file is compacted when bigger than COMPACT_MIN and COMPACT_RATIO
+   * times its live records */
+  private static final long COMPACT_MIN = 64L * 1024 * 1024;
+  private static final int COMPACT_RATIO = 2;
+
+  /** Bytes copied by a compaction between two batches */
+  private static final long COMPACT_SLICE = 4L * 1024 * 1024;
+
+  /** The log file */
+  private final File file;
+
+  /** The open log file, written by this thread only */
+  private FileChannel channel;
+
+  /** Records waiting to be written, ByteBuffers */
+  private List pending = new ArrayList();
+
+  /** Number of records appended, and of records on disk */
+  private long appendedNo = 0;
+  private long syncedNo = 0;
+
+  /** The error that stopped the log, null while it works. The records
+   * appended since are not written. */
+  private IOException failure;
+
+  /** The requests left by the previous run, arrays of a template and its
+   * listener. Set by recover. */
+  private final List recoveredRequests = new ArrayList();
+
+  /** Position and length in the file of every live WRITE record, by object id.
+   * Used by this thread only. */
+  private final LongMap liveRecords = new LongMap();
+
+  /** Total length of the live records */
+  private long liveBytes = 0;
+
+  /** The compaction in progress, null if none. The live records when it
+   * started are copied first, by id, as arrays of their old position,
+   * length and new position. Then the log from compactFrom, the records
+   * appended since, is copied from tailStart in the new file. Used by this
+   * thread only. */
+  private File compactFile;
+  private FileChannel compactOut;
+  private LongMap compacted;
+  private int compactSlot;
+  private long compactFrom;
+  private long tailStart;
+  private long tailCopied;
+
+  public SpaceLog(File file) {
+    this.file = file;
+    setDaemon(true);
+  }
+
+  /** Opens the log, and returns the objects left live by the previous run
+   * as arrays of a SpaceObj and its expiration time. They keep their ids and
+   * records, and are indexed but not stored yet. The requests not notified
+   * yet are kept for getRecoveredRequests. A damaged end of the log,
+   * from a crash while writing, is cut off. Must be called before start. */
+  public List recover() throws IOException {
+    channel = new RandomAccessFile(file, "rw").getChannel();
+    long size = channel.size();
+    long position = 0;
+    long maxId = 0;
+    // the body of every live WRITE record, by id
+    LongMap live = new LongMap();
+    MappedByteBuffer region = null;
+    long regionStart = 0;
+    while (position + 4 <= size) {
+      if (region == null || position + 4 > regionStart + region.capacity()) {
+        regionStart = position;
+        region = map(regionStart, size);
+      }
+      int length = region.getInt( (int) (position - regionStart));
+      if (length < 1 + 8 || length > MAP_SIZE - 12 ||
+          position + 4 + length + 8 > size) {
+        break;
+      }
+      if (position + 4 + length + 8 > regionStart + region.capacity()) {
+        regionStart = position;
+        region = map(regionStart, size);
+      }
+      int offset = (int) (position - regionStart) + 4;
+      region.position(offset).limit(offset + length);
+      ByteBuffer body = region.slice();
+      region.clear();
+      CRC32 crc = new CRC32();
+      crc.update(body.duplicate());
+      if (crc.getValue() != region.getLong(offset + length)) {
+        break;
+      }
+      long id = body.getLong(1);
+      maxId = Math.max(maxId, id);
+      if (body.get(0) != REMOVE) {
+        live.put(id, new Object[] {body, new long[] {position, 4 + length + 8}});
+      }
+      else {
+        live.remove(id);
+      }
+      position += 4 + length + 8;
+    }
+    channel.truncate(position);
+    channel.position(position);
+    SpaceObj.reserveIds(maxId);
+
+    List objs = new ArrayList(live.size());
+    long now = System.currentTimeMillis();
+    for (int slot = 0; slot < live.capacity(); slot++) {
+      Object[] record = (Object[]) live.valueAt(slot);
+      if (record == null) {
+        continue;
+      }
+      ByteBuffer body = (ByteBuffer) record[0];
+      long id = body.getLong(1);
+      long[] location = (long[]) record[1];
+      if (body.get(0) == REGISTER) {
+        Object[] request = readRequest(id, body);
+        if (request == null) {
+          logRemove(id);
+          continue;
+        }
+        liveRecords.put(id, location);
+        liveBytes += location[1];
+        recoveredRequests.add(request);
+        continue;
+      }
+      long expiration = body.getLong(EXPIRATION);
+      SpaceObj obj = expiration > now ? readObj(id, body) : null;
+      if (obj == null) {
+        // expired while the space was down
+        logRemove(id);
+        continue;
+      }
+      liveRecords.put(id, location);
+      liveBytes += location[1];
+      obj.log = this;
+      Object[] o = {
+          obj, Long.valueOf(expiration)};
+      objs.add(o);
+    }
+    return objs;
+  }
+
+  /** Returns the requests left by the previous run, arrays of a template,
+   * logged in this log, and its listener */
+  public List getRecoveredRequests() {
+    return recoveredRequests;
+  }
+
+  /** Maps the log from the given position, up to MAP_SIZE bytes */
+  private MappedByteBuffer map(long position, long size) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position,
+                       Math.min(size - position, MAP_SIZE));
+  }
+
+  /** Creates the object of a WRITE record body from its index values.
+   * Returns null if its class can't be loaded. */
+  private static SpaceObj readObj(long id, ByteBuffer body) {
+    ByteBuffer in = body.duplicate();
+    in.position(CLASS_NAME);
+    try {
+      Class cls = Class.forName(EntryCodec.readString(in));
+      EntryCodec codec = EntryCodec.forClass(cls);
+      if (in.getInt() != codec.getSignature()) {
+        System.out.println("Entry not recovered, the fields of " +
+                           cls.getName() + " changed");
+        return null;
+      }
+      Object[] values = codec.read(in);
+      return new SpaceObj(id, cls, values, codec.isCodable() ? null : in.slice());
+    }
+    catch (Exception ex) {
+      System.out.println("Error recovering entry " + ex.toString());
+      ex.printStackTrace();
+      return null;
+    }
+  }
+
+  /** Creates the request of a REGISTER record body: its template, with
+   * the id of the record, and its listener. Returns null if it can't be
+   * read. */
+  private Object[] readRequest(long id, ByteBuffer body) {
+    ByteBuffer in = body.duplicate();
+    in.position(1 + 8);
+    byte[] b = new byte[in.remaining()];
+    in.get(b);
+    try {
+      Object[] request = (Object[]) new ObjectInputStream(new
+          ByteArrayInputStream(b)).readObject();
+      SpaceObj template = SpaceObj.request( (Entry) request[0], id);
+      template.log = this;
+      return new Object[] {
+          template, request[1]};
+    }
+    catch (Exception ex) {
+      System.out.println("Error recovering request " + ex.toString());
+      ex.printStackTrace();
+      return null;
+    }
+  }
+
+  /** Deserializes an entry kept in the log */
+  static Entry readEntry(ByteBuffer bytes) {
+    byte[] b = new byte[bytes.remaining()];
+    bytes.duplicate().get(b);
+    try {
+      return (Entry) new ObjectInputStream(new ByteArrayInputStream(b)).
+          readObject();
+    }
+    catch (Exception ex) {
+      System.out.println("Error reading entry " + ex.toString());
+      ex.printStackTrace();
+      return null;
+    }
+  }
+
+  /** Appends a WRITE record of the object, before it is valid */
+  public void logWrite(SpaceObj obj, long expiration) throws IOException {
+    EntryCodec codec = EntryCodec.forClass(obj.getObjClass());
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    // the body length and checksum are set below
+    out.writeInt(0);
+    out.writeByte(WRITE);
+    out.writeLong(obj.getId());
+    out.writeLong(expiration);
+    EntryCodec.writeString(obj.getObjClass().getName(), out);
+    out.writeInt(codec.getSignature());
+    codec.write(obj.getValues(), out);
+    if (!codec.isCodable()) {
+      ObjectOutputStream oout = new ObjectOutputStream(out);
+      oout.writeObject(obj.getEntry());
+      oout.flush();
+    }
+    out.writeLong(0);
+    ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+    record.putInt(0, record.capacity() - 4 - 8);
+    record.position(record.capacity() - 8);
+    obj.log = this;
+    append(record);
+  }
+
+  /** Appends a REGISTER record of a request, the template and its
+   * listener. The template is removed from the log when it is invalidated. */
+  public void logRegister(SpaceObj template, Entry entry,
+                          RemoteEventListener l) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    // the body length and checksum are set below
+    out.writeInt(0);
+    out.writeByte(REGISTER);
+    out.writeLong(template.getId());
+    ObjectOutputStream oout = new ObjectOutputStream(out);
+    oout.writeObject(new Object[] {entry, l});
+    oout.flush();
+    out.writeLong(0);
+    ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+    record.putInt(0, record.capacity() - 4 - 8);
+    record.position(record.capacity() - 8);
+    template.log = this;
+    append(record);
+  }
+
+  /** Appends a REMOVE record of the object */
+  public void logRemove(SpaceObj obj) {
+    logRemove(obj.getId());
+  }
+
+  private void logRemove(long id) {
+    ByteBuffer record = ByteBuffer.allocate(HEADER + 8);
+    record.putInt(1 + 8);
+    record.put(REMOVE);
+    record.putLong(id);
+    append(record);
+  }
+
+  /** Adds the checksum, and the record to the pending records */
+  private void append(ByteBuffer record) {
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 4, record.position() - 4);
+    record.putLong(crc.getValue());
+    record.flip();
+    synchronized (this) {
+      pending.add(record);
+      appendedNo++;
+      notify();
+    }
+  }
+
+  /** Waits until all the records appended so far are on disk. Throws an
+   * IOException if the log stopped before they were written. */
+  public synchronized void sync() throws IOException {
+    long no = appendedNo;
+    while (syncedNo < no && failure == null) {
+      try {
+        wait();
+      }
+      catch (InterruptedException ex) {}
+    }
+    if (syncedNo < no) {
+      throw new IOException("The log stopped: " + failure.toString(), failure);
+    }
+  }
+
+  /** Returns the number of records appended and not on disk yet */
+  public synchronized long getWaitingNo() {
+    return appendedNo - syncedNo;
+  }
+
+  /** Every time records are appended, writes them and syncs the file once.
+   * While compacting, a slice is copied after every batch. */
+  public void run() {
+    for (; ; ) {
+      List batch;
+      long no;
+      synchronized (this) {
+        while (pending.isEmpty() && (compacted == null || failure != null)) {
+          try {
+            wait();
+          }
+          catch (InterruptedException ex) {
+            System.out.println("Log Error " + ex.toString());
+            ex.printStackTrace();
+          }
+        }
+        batch = pending;
+        pending = new ArrayList();
+        no = appendedNo;
+        // a stopped log writes nothing more
+        if (failure != null) {
+          continue;
+        }
+      }
+      if (!batch.isEmpty()) {
+        try {
+          writeBatch(batch);
+          channel.force(false);
+        }
+        catch (IOException ex) {
+          System.out.println("Error writing the log " + ex.toString());
+          ex.printStackTrace();
+          stop(ex);
+          continue;
+        }
+        synchronized (this) {
+          syncedNo = no;
+          notifyAll();
+        }
+      }
+      try {
+        if (compacted != null) {
+          compactSlice();
+        }
+        else if (channel.size() > COMPACT_MIN &&
+                 channel.size() > COMPACT_RATIO * liveBytes) {
+          startCompaction();
+        }
+      }
+      catch (IOException ex) {
+        System.out.println("Error compacting the log " + ex.toString());
+        ex.printStackTrace();
+        abortCompaction();
+      }
+    }
+  }
+
+  /** Stops the log: the syncs waiting and all the later ones fail */
+  private void stop(IOException ex) {
+    abortCompaction();
+    synchronized (this) {
+      failure = ex;
+      notifyAll();
+    }
+  }
+
+  /** Writes the records at the end of the file, keeping track of the live
+   * ones: written entries and requests */
+  private void writeBatch(List batch) throws IOException {
+    long position = channel.size();
+    ByteBuffer[] records = (ByteBuffer[]) batch.toArray(new ByteBuffer[batch.
+        size()]);
+    for (int i = 0; i < records.length; i++) {
+      ByteBuffer record = records[i];
+      int length = record.remaining();
+      long id = record.getLong(5);
+      if (record.get(4) != REMOVE) {
+        liveRecords.put(id, new long[] {position, length});
+        liveBytes += length;
+      }
+      else {
+        long[] live = (long[]) liveRecords.remove(id);
+        if (live != null) {
+          liveBytes -= live[1];
+        }
+      }
+      position += length;
+    }
+    channel.position(channel.size());
+    while (records.length > 0 && records[records.length - 1].hasRemaining()) {
+      channel.write(records);
+    }
+  }
+
+  /** Starts copying the live records to a new file, which replaces the log
+   * once they and the records appended meanwhile are copied. If it fails,
+   * the log is left as it was. */
+  private void startCompaction() throws IOException {
+    compactFile = new File(file.getPath() + ".compact");
+    RandomAccessFile raf = new RandomAccessFile(compactFile, "rw");
+    raf.setLength(0);
+    compactOut = raf.getChannel();
+    compacted = new LongMap(liveRecords.size());
+    for (int slot = 0; slot < liveRecords.capacity(); slot++) {
+      long[] live = (long[]) liveRecords.valueAt(slot);
+      if (live != null) {
+        compacted.put(liveRecords.keyAt(slot), new long[] {live[0], live[1], 0});
+      }
+    }
+    compactSlot = 0;
+    compactFrom = channel.size();
+    tailStart = -1;
+  }
+
+  /** Copies up to COMPACT_SLICE bytes: the live records first, then the
+   * records appended since the compaction started. Once all are copied, the
+   * new file replaces the log. */
+  private void compactSlice() throws IOException {
+    long budget = COMPACT_SLICE;
+    for (; compactSlot < compacted.capacity() && budget > 0; compactSlot++) {
+      long[] record = (long[]) compacted.valueAt(compactSlot);
+      if (record != null) {
+        record[2] = compactOut.position();
+        transfer(record[0], record[1]);
+        budget -= record[1];
+      }
+    }
+    if (compactSlot < compacted.capacity()) {
+      return;
+    }
+    if (tailStart < 0) {
+      tailStart = compactOut.position();
+      tailCopied = compactFrom;
+    }
+    long length = Math.min(channel.size() - tailCopied, Math.max(budget, 0));
+    transfer(tailCopied, length);
+    tailCopied += length;
+    if (tailCopied == channel.size()) {
+      finishCompaction();
+    }
+  }
+
+  /** Copies length bytes of the log from the given position to the end of
+   * the new file. Fails if the log ends before. */
+  private void transfer(long position, long length) throws IOException {
+    while (length > 0) {
+      long n = channel.transferTo(position, length, compactOut);
+      if (n <= 0) {
+        throw new EOFException("The log ended at " + position);
+      }
+      position += n;
+      length -= n;
+    }
+  }
+
+  /** Replaces the log with the new file, and moves the live records to
+   * their new positions */
+  private void finishCompaction() throws IOException {
+    compactOut.force(true);
+    Files.move(compactFile.toPath(), file.toPath(),
+               StandardCopyOption.ATOMIC_MOVE,
+               StandardCopyOption.REPLACE_EXISTING);
+    for (int slot = 0; slot < liveRecords.capacity(); slot++) {
+      long[] live = (long[]) liveRecords.valueAt(slot);
+      if (live == null) {
+        continue;
+      }
+      if (live[0] >= compactFrom) {
+        live[0] += tailStart - compactFrom;
+      }
+      else {
+        live[0] = ( (long[]) compacted.get(liveRecords.keyAt(slot)))[2];
+      }
+    }
+    channel.close();
+    channel = compactOut;
+    compactOut = null;
+    compacted = null;
+    // the new file is the log only once its directory entry is on disk
+    try {
+      syncDirectory();
+    }
+    catch (IOException ex) {
+      System.out.println("Error syncing the log directory " + ex.toString());
+      ex.printStackTrace();
+      stop(ex);
+    }
+  }
+
+  /** Drops the compaction in progress, if any, and its file */
+  private void abortCompaction() {
+    if (compacted == null) {
+      return;
+    }
+    try {
+      compactOut.close();
+    }
+    catch (IOException ex) {}
+    compactFile.delete();
+    compactOut = null;
+    compacted = null;
+  }
+
+  /** Syncs the directory of the log, so a renamed file survives a crash */
+  private void syncDirectory() throws IOException {
+    FileChannel dir = FileChannel.open(file.getAbsoluteFile().getParentFile().
+                                       toPath(), StandardOpenOption.READ);
+    try {
+      dir.force(true);
+    }
+    finally {
+      dir.close();
+    }
+  }
+}
@@ -0,0 +1,129 @@
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+
+/**
+ * <p>Title: SpaceMetrics </p>
+ * <p>Description: The instrumentation of the space: latency histograms of
+ * the operations, wait times of the SpaceField and FieldValue locks, and
+ * the backlogs of the background threads. They are exported as JMX MBeans
+ * under the "SpaceServer" domain.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class SpaceMetrics
+    implements SpaceMetricsMBean {
+
+  /** Latencies of the operations */
+  final LatencyHistogram write = new LatencyHistogram();
+  final LatencyHistogram writeAll = new LatencyHistogram();
+  final LatencyHistogram read = new LatencyHistogram();
+  final LatencyHistogram take = new LatencyHistogram();
+  final LatencyHistogram readMultiple = new LatencyHistogram();
+  final LatencyHistogram takeMultiple = new LatencyHistogram();
+  final LatencyHistogram readRange = new LatencyHistogram();
+  final LatencyHistogram takeRange = new LatencyHistogram();
+  final LatencyHistogram register = new LatencyHistogram();
+
+  /** Latencies of the reads and takes with a timeout, the wait for an entry
+   * to be written included */
+  final LatencyHistogram readWait = new LatencyHistogram();
+  final LatencyHistogram takeWait = new LatencyHistogram();
+
+  /** Waits for the locks of the SpaceFields and of the FieldValues */
+  final LockMetrics fieldLocks = new LockMetrics();
+  final LockMetrics valueLocks = new LockMetrics();
+
+  /** The parts of the space whose backlogs are watched, the log and the
+   * store are null if not used */
+  private final RequestsThread[] requestsThreads;
+  private final DisposalsThread disposalsThread;
+  private final NotificationDispatcher dispatcher;
+  private final LeaseWheel leaseWheel;
+  private final SpaceLog log;
+  private final OffHeapStore offHeapStore;
+
+  public SpaceMetrics(RequestsThread[] requestsThreads,
+                      DisposalsThread disposalsThread,
+                      NotificationDispatcher dispatcher,
+                      LeaseWheel leaseWheel, SpaceLog log,
+                      OffHeapStore offHeapStore) {
+    this.requestsThreads = requestsThreads;
+    this.disposalsThread = disposalsThread;
+    this.dispatcher = dispatcher;
+    this.leaseWheel = leaseWheel;
+    this.log = log;
+    this.offHeapStore = offHeapStore;
+  }
+
+  /** Registers the MBeans in the platform MBean server, replacing those of
+   * a previous space */
+  public void register() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    register(server, "type=Space", this);
+    register(server, "type=Latency,name=write", write);
+    register(server, "type=Latency,name=writeAll", writeAll);
+    register(server, "type=Latency,name=read", read);
+    register(server, "type=Latency,name=take", take);
+    register(server, "type=Latency,name=readMultiple", readMultiple);
+    register(server, "type=Latency,name=takeMultiple", takeMultiple);
+    register(server, "type=Latency,name=readWait", readWait);
+    register(server, "type=Latency,name=takeWait", takeWait);
+    register(server, "type=Latency,name=readRange", readRange);
+    register(server, "type=Latency,name=takeRange", takeRange);
+    register(server, "type=Latency,name=register", register);
+    register(server, "type=LockWait,name=field", fieldLocks.waits);
+    register(server, "type=LockWait,name=value", valueLocks.waits);
+  }
+
+  private static void register(MBeanServer server, String name, Object bean) throws
+      JMException {
+    ObjectName objectName = new ObjectName("SpaceServer:" + name);
+    if (server.isRegistered(objectName)) {
+      server.unregisterMBean(objectName);
+    }
+    server.registerMBean(bean, objectName);
+  }
+
+  public int getRequestsBacklog() {
+    int n = 0;
+    for (int i = 0; i < requestsThreads.length; i++) {
+      n += requestsThreads[i].getWaitingNo();
+    }
+    return n;
+  }
+
+  public int getDisposalsBacklog() {
+    return disposalsThread.getWaitingNo();
+  }
+
+  public int getNotificationBacklog() {
+    return dispatcher.getWaitingNo();
+  }
+
+  public long getLogBacklog() {
+    return log == null ? 0 : log.getWaitingNo();
+  }
+
+  public long getLeaseNo() {
+    return leaseWheel.getLeaseNo();
+  }
+
+  public long getLeaseLagMillis() {
+    return leaseWheel.getLagMillis();
+  }
+
+  public int getFieldLockWaiting() {
+    return fieldLocks.waiting.get();
+  }
+
+  public int getValueLockWaiting() {
+    return valueLocks.waiting.get();
+  }
+
+  public long getOffHeapUsedBytes() {
+    return offHeapStore == null ? 0 : offHeapStore.getUsedBytes();
+  }
+
+  public long getOffHeapReservedBytes() {
+    return offHeapStore == null ? 0 : offHeapStore.getReservedBytes();
+  }
+}
@@ -0,0 +1,37 @@
+/**
+ * <p>Title: SpaceMetricsMBean </p>
+ * <p>Description: The JMX view of the backlogs of the space: the work its
+ * background threads have not done yet.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public interface SpaceMetricsMBean {
+
+  /** Number of written objects the RequestsThreads have not matched yet */
+  public int getRequestsBacklog();
+
+  /** Number of removed objects not disposed yet */
+  public int getDisposalsBacklog();
+
+  /** Number of notifications not delivered yet */
+  public int getNotificationBacklog();
+
+  /** Number of log records not on disk yet */
+  public long getLogBacklog();
+
+  /** Number of leases waiting to expire */
+  public long getLeaseNo();
+
+  /** Time the expiration of the leases is behind, in milliseconds */
+  public long getLeaseLagMillis();
+
+  /** Number of threads waiting for the lock of a SpaceField */
+  public int getFieldLockWaiting();
+
+  /** Number of threads waiting for the lock of a FieldValue */
+  public int getValueLockWaiting();
+
+  /** Size of the off heap blocks in use, and of the slabs */
+  public long getOffHeapUsedBytes();
+
+  public long getOffHeapReservedBytes();
+}
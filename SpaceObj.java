@@ -1,5 +1,8 @@
+import java.io.*;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 /**
  * <p>Title: SpaceObj </p>
  * <p>Description: A wrapper for an space entry</p>
@@ -7,95 +10,367 @@ import java.util.*;
  */
 public class SpaceObj {
 
-  /** the entry */
-  Entry entry;
+  /** Source of unique object ids */
+  private static final AtomicLong nextId = new AtomicLong();
+
+  /** The reused templates of every thread, by class */
+  private static final ThreadLocal scratchTemplates = new ThreadLocal() {
+    protected Object initialValue() {
+      return new IdentityHashMap();
+    }
+  };
+
+  /** the entry, null if it is rebuilt from the values by the codec,
+   * or until read from entryBytes */
+  private volatile Entry entry;
+
+  /** The serialized entry of a recovered object, until it is first needed */
+  private ByteBuffer entryBytes;
+
+  /** Unique id of this object, its key in the FieldValue class maps */
+  private final long id;
 
   /** The object's class */
   private final Class objClass;
 
-  /** Object's not null public fields */
-  private final Map publicFields;
+  /** Public fields of the object's class */
+  private final EntrySchema schema;
+
+  /** Binary layout of the object's class */
+  private final EntryCodec codec;
 
-  /** Entry's public fields */
-  List entryPublicFields;
+  /** Values of the public fields, in the schema order. Null while they are
+   * kept in an OffHeapStore. */
+  private volatile Object[] values;
+
+  /** The store keeping the values off the heap, and their handle there.
+   * Changed under the object's lock: the handle is set before the store,
+   * and the store is cleared before the block is freed, so a match without
+   * the lock can tell if the block was freed meanwhile. */
+  private volatile OffHeapStore store;
+  private long handle;
+
+  /** True if at least one public field is not null */
+  private boolean hasValues;
+
+  /** True if this is the reused template of a thread */
+  private boolean scratch;
+
+  /** Ranges a correlated object's fields must be in, null if none.
+   * Set on templates only. */
+  private Field[] rangeFields;
+  private Range[] ranges;
 
   /** True if the object is still in database  */
   private boolean valid = false;
 
-  /** Task that removes this entry from database */
-  private RemoveObjTask removeTask;
+  /** True once the object was taken or expired. An object that is not valid
+   * yet and not removed is still being written. Changed under the object's
+   * lock. */
+  private boolean removed = false;
+
+  /** The LeaseWheel expiring this object, and the expiration tick, bucket and
+   * links in the bucket list. Set by the LeaseWheel under the lock of the
+   * bucket, leaseSlot is -1 if not scheduled. */
+  LeaseWheel leaseWheel;
+  long leaseTick;
+  int leaseSlot = -1;
+  SpaceObj leasePrev, leaseNext;
 
-  /** Every element is an array with 2 pointers: value and class */
-  private List addresses;
+  /** The SpaceLog holding the object's WRITE record, null if not logged or
+   * once its removal was logged. Set by the SpaceLog. */
+  SpaceLog log;
+
+  /** Pairs of pointers: value and class map, one pair per field.
+   * Created when the object is first indexed, templates have none. */
+  private Object[] addresses;
+  private int addressNo = 0;
 
   public SpaceObj(Entry entry) throws Exception {
-    this.entry = entry;
+    this(entry, nextId.incrementAndGet());
+  }
+
+  /** Creates an object with the given id, 0 for a template */
+  private SpaceObj(Entry entry, long id) throws Exception {
+    this.id = id;
     this.objClass = entry.getClass();
-    this.publicFields = new HashMap();
-    Field[] entryFields;
-    addresses = new LinkedList();
-    entryFields = objClass.getFields();
-    for (int i = 0; i < entryFields.length; i++) {
-      Field currField = entryFields[i];
-      /* A null field is not taken into account  */
-      if (currField.get(entry) == null) {
-        continue;
-      }
-      int mod = currField.getModifiers();
-      if (Modifier.isPublic(mod)) {
-        publicFields.put(currField.getName(), currField.get(entry));
-      }
+    this.schema = EntrySchema.forClass(objClass);
+    this.codec = EntryCodec.forClass(objClass);
+    this.values = schema.getValues(entry);
+    // the values are the whole entry, it is not kept
+    this.entry = codec.isCodable() ? null : entry;
+    this.hasValues = anyNotNull(values);
+  }
+
+  /** Creates the object of a template. A template is never stored, so it
+   * takes no id from the shared counter. */
+  public static SpaceObj template(Entry entry) throws Exception {
+    return new SpaceObj(entry, 0);
+  }
+
+  /** Returns the template of the entry for a lookup that does not keep it.
+   * It is the template of the thread for the entry's class, set to the
+   * entry's values, so the lookup allocates nothing. It is reused by the
+   * next call of the thread. */
+  public static SpaceObj scratchTemplate(Entry entry) throws Exception {
+    Map templates = (Map) scratchTemplates.get();
+    SpaceObj template = (SpaceObj) templates.get(entry.getClass());
+    if (template == null) {
+      template = new SpaceObj(entry, 0);
+      template.scratch = true;
+      templates.put(entry.getClass(), template);
+      return template;
     }
-    entryPublicFields = Arrays.asList(entry.getClass().getFields());
-    Iterator i =  entryPublicFields.iterator();
-    while (i.hasNext()) {
-      Field fi = (Field) i.next();
-      int mod = fi.getModifiers();
-      if (!Modifier.isPublic(mod)) {
-        i.remove();
+    Object[] v = template.values;
+    template.schema.readValues(entry, v);
+    template.entry = template.codec.isCodable() ? null : entry;
+    template.hasValues = anyNotNull(v);
+    return template;
+  }
+
+  /** Creates the template of a request kept in the log, with the id of its
+   * record. A new request takes its id from the shared counter. */
+  static SpaceObj request(Entry entry, long id) throws Exception {
+    return new SpaceObj(entry, id == 0 ? nextId.incrementAndGet() : id);
+  }
+
+  /** Creates an object recovered from the log with its id, the values of
+   * its public fields in schema order and its serialized entry, null if
+   * the codec rebuilds it. The entry is deserialized when first needed. */
+  SpaceObj(long id, Class objClass, Object[] values, ByteBuffer entryBytes) {
+    this.id = id;
+    this.objClass = objClass;
+    this.schema = EntrySchema.forClass(objClass);
+    this.codec = EntryCodec.forClass(objClass);
+    this.values = values;
+    this.entryBytes = entryBytes;
+    this.hasValues = anyNotNull(values);
+  }
+
+  /** A null field is not taken into account */
+  private static boolean anyNotNull(Object[] values) {
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null) {
+        return true;
       }
     }
+    return false;
+  }
+
+  /** Makes sure new ids are bigger than the given one */
+  static void reserveIds(long maxId) {
+    long id = nextId.get();
+    while (id < maxId && !nextId.compareAndSet(id, maxId)) {
+      id = nextId.get();
+    }
   }
 
   public List getEntryFields() {
-    return entryPublicFields;
+    return schema.getFieldList();
+  }
+
+  /** Returns the database keys of the public fields, in schema order */
+  public FieldKey[] getKeys() {
+    return schema.getKeys();
   }
 
+  public long getId() {
+    return id;
+  }
+
+  /** Returns the entry. An entry rebuilt by the codec is a new copy. */
   public Entry getEntry() {
+    Entry e = entry;
+    if (e != null) {
+      return e;
+    }
+    return codec.isCodable() ? codec.newEntry(values()) : readEntry();
+  }
+
+  /** Deserializes the entry of a recovered object */
+  private synchronized Entry readEntry() {
+    if (entry == null) {
+      entry = SpaceLog.readEntry(entryBytes);
+      entryBytes = null;
+    }
     return entry;
   }
 
-  public void setRemoveTask(RemoveObjTask removeTask) {
-    this.removeTask = removeTask;
+  /** Values of the public fields, in the schema order. Must not be changed. */
+  Object[] getValues() {
+    return values();
   }
 
-  public void addAddress(Object a) {
-    addresses.add(a);
+  /** Moves the values to the store, if the entry can be rebuilt from them.
+   * Values written serialized stay on the heap, every match would
+   * deserialize them. Called once the object is indexed. */
+  void storeOffHeap(OffHeapStore store) {
+    Object[] v = values;
+    if (!codec.isCodable() || v.length == 0 || codec.hasSerialized(v)) {
+      return;
+    }
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      codec.write(v, new DataOutputStream(bytes));
+      long h = store.store(bytes.toByteArray());
+      if (h == -1) {
+        return;
+      }
+      synchronized (this) {
+        if (removed) {
+          store.free(h);
+          return;
+        }
+        this.handle = h;
+        this.store = store;
+        values = null;
+      }
+    }
+    catch (IOException ex) {
+      System.out.println("Error storing entry " + ex.toString());
+      ex.printStackTrace();
+    }
+  }
+
+  private Object[] values() {
+    Object[] v = values;
+    return v != null ? v : readValues();
+  }
+
+  /** Reads the values from the store. The block is freed under the same
+   * lock, so it is never read once reused. Fails if the values can't be
+   * read, rather than returning null values. */
+  private synchronized Object[] readValues() {
+    if (values != null) {
+      return values;
+    }
+    if (store == null) {
+      throw new IllegalStateException("The values of entry " + id +
+                                      " were lost");
+    }
+    try {
+      return codec.read(store.read(handle));
+    }
+    catch (IOException ex) {
+      throw new IllegalStateException("Error reading entry " + id + ": " +
+                                      ex.toString());
+    }
+  }
+
+  /** Matches the template against the values kept off the heap, in place
+   * and without the object's lock. The block may be freed and reused
+   * meanwhile, so the result counts only if the object still holds it
+   * afterwards. Returns null if it doesn't. */
+  private Boolean matchStored(SpaceObj template) {
+    OffHeapStore s = store;
+    if (s == null) {
+      return null;
+    }
+    long h = handle;
+    boolean match;
+    try {
+      match = codec.matches(s.slabOf(h), OffHeapStore.start(h),
+                            template.schema, template.values,
+                            template.rangeFields, template.ranges);
+    }
+    catch (Exception ex) {
+      if (store != s) {
+        return null;
+      }
+      System.out.println("Error reading entry " + ex.toString());
+      ex.printStackTrace();
+      return Boolean.FALSE;
+    }
+    return store == s ? Boolean.valueOf(match) : null;
+  }
+
+  /** Adds the value and class map holding this object under a field */
+  public void addAddress(FieldValue value, LongMap classObjects) {
+    if (addresses == null) {
+      addresses = new Object[2 * schema.size()];
+    }
+    addresses[addressNo++] = value;
+    addresses[addressNo++] = classObjects;
   }
 
   public boolean isValid() {
     return valid;
   }
 
-  public void invalidate() {
+  /** Marks the object as removed, and logs its removal once. Values kept off
+   * the heap come back for the last readers, and their block is freed. */
+  public synchronized void invalidate() {
     valid = false;
+    removed = true;
+    OffHeapStore s = store;
+    if (s != null) {
+      try {
+        values = codec.read(s.read(handle));
+      }
+      catch (IOException ex) {
+        System.out.println("Error reading entry " + ex.toString());
+        ex.printStackTrace();
+      }
+      store = null;
+      s.free(handle);
+    }
+    if (log != null) {
+      log.logRemove(this);
+      log = null;
+    }
   }
 
   public void validate() {
     valid = true;
   }
 
+  /** Returns true once the object was taken or expired. Called with the
+   * object's lock held. */
+  public boolean isRemoved() {
+    return removed;
+  }
+
   public Class getObjClass() {
     return objClass;
   }
 
-  public Map getObjFields() {
-    return publicFields;
+  /** Returns true if at least one public field is not null */
+  public boolean hasValues() {
+    return hasValues;
+  }
+
+  /** Makes this template match objects whose fields are in the given
+   * ranges. The template's own values of these fields are ignored. */
+  void setRanges(Field[] rangeFields, Range[] ranges) {
+    if (scratch) {
+      throw new IllegalStateException("A reused template can't have ranges");
+    }
+    for (int i = 0; i < rangeFields.length; i++) {
+      int index = schema.indexOf(rangeFields[i]);
+      if (index >= 0) {
+        values[index] = null;
+      }
+    }
+    this.hasValues = anyNotNull(values);
+    this.rangeFields = rangeFields;
+    this.ranges = ranges;
+  }
+
+  /** Returns the ranges of this template, or null */
+  public Range[] getRanges() {
+    return ranges;
   }
 
-  public void cancelTask() {
-    if(removeTask!=null)
-      removeTask.cancel();
+  /** Returns the value of the given field, or null if the field is null
+   * or not a field of this object */
+  public Object getValue(Field field) {
+    int index = schema.indexOf(field);
+    return index < 0 ? null : values()[index];
+  }
+
+  public void cancelLease() {
+    if(leaseWheel!=null)
+      leaseWheel.cancel(this);
   }
 
   /** Called by DisposalsThread when it becomes invalid because of the
@@ -103,34 +378,62 @@ public class SpaceObj {
    * of the system.
    */
   public void dispose() {
-      Iterator i = addresses.iterator();
-      while (i.hasNext()) {
-        Object[] o = (Object[]) i.next();
+      for (int i = 0; i < addressNo; i += 2) {
         //this remove function is protected by RWSemaphore from the inside.
-        ( (FieldValue) o[0]).removeEntry( (List) o[1], this);
+        ( (FieldValue) addresses[i]).removeEntry( (LongMap) addresses[i + 1],
+                                                 this);
       }
   }
 
-  /** Retruns true if the object correlates with the template */
+  /** Retruns true if the object correlates with the template. Values kept
+   * off the heap are compared in place. */
   public static boolean correlates(SpaceObj o, SpaceObj template) {
-    Iterator i = template.getObjFields().entrySet().iterator();
-    while (i.hasNext()) {
-      Map.Entry templateFieldMapping = (Map.Entry) i.next();
-      if (!o.getObjFields().containsKey(templateFieldMapping.getKey())) {
+    Object[] values = o.values;
+    if (values == null) {
+      Boolean match = o.matchStored(template);
+      if (match != null) {
+        return match.booleanValue();
+      }
+      // the block was freed meanwhile, the values are back on the heap
+      values = o.values;
+      if (values == null) {
         return false;
       }
-      if (!templateFieldMapping.getValue().equals(o.getObjFields().get(
-          templateFieldMapping.getKey()))) {
+    }
+    Field[] fields = template.schema.getFields();
+    boolean sameSchema = o.schema == template.schema;
+    for (int i = 0; i < fields.length; i++) {
+      Object templateValue = template.values[i];
+      if (templateValue == null) {
+        continue;
+      }
+      Object value = sameSchema ? values[i] : o.valueIn(values, fields[i]);
+      if (!templateValue.equals(value)) {
         return false;
       }
     }
+    if (template.ranges != null) {
+      for (int i = 0; i < template.ranges.length; i++) {
+        if (!template.ranges[i].contains(o.valueIn(values,
+            template.rangeFields[i]))) {
+          return false;
+        }
+      }
+    }
     return true;
   }
 
+  /** Returns the value of the given field among the values of this object,
+   * or null if it is not a field of this object */
+  private Object valueIn(Object[] values, Field field) {
+    int index = schema.indexOf(field);
+    return index < 0 ? null : values[index];
+  }
+
   public boolean equals(Object o) {
     return (o instanceof SpaceObj) &&
         (this.objClass.equals( ( (SpaceObj) o).objClass)) &&
-        (this.publicFields.equals( ( (SpaceObj) o).publicFields));
+        (Arrays.equals(this.values(), ( (SpaceObj) o).values()));
   }
 
 }
@@ -2,7 +2,10 @@ import java.rmi.server.*;
 import java.rmi.*;
 import java.rmi.registry.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 import java.lang.reflect.*;
+import java.io.*;
 
 /**
  * <p>Title:SpaceServer </p>
@@ -13,12 +16,13 @@ public class SpaceServer
     extends UnicastRemoteObject
     implements ISpaceServer {
 
-  /**  Writers - Readers semaphore that protects the database */
-  private RWSemaphore dbSem;
+  /** Threads powered by consumers/producer mechanism
+   *  that hold requests and notify if a desired object was written.
+   *  Requests of a template class are held by one of them. */
+  private RequestsThread[] requestsThreads;
 
-  /** A  thread powered by consumers/producer mechanism
-   *  that holds requests and notify if a desired object was written */
-  private RequestsThread requestsThread;
+  /** Delivers notifications to remote listeners */
+  private NotificationDispatcher dispatcher;
 
   /** A  thread powered by consumers/producer mechanism that removes non-valid objects */
   private DisposalsThread disposalsThread;
@@ -29,115 +33,416 @@ public class SpaceServer
   /**A  task powered at long fixed intervals that  removes upper levels */
   private CleaningTask cleaningTask;
 
-  /** All entries are hold in 3 top hashing levels and a bottom map level*/
-  private Hashtable db;
+  /** All entries are hold in 3 top hashing levels and a bottom map level.
+   * The top level is a concurrent map, SpaceFields are added and removed
+   * atomically without locking the whole level. */
+  private ConcurrentHashMap db;
+
+  /** Stored sub-classes of every entry class */
+  private ClassHierarchy hierarchy;
+
+  /** A background thread expiring the leases of the entries */
+  private LeaseWheel leaseWheel;
 
   /** A background Timer thread for scheduling tasks */
   private Timer timer;
 
+  /** The write ahead log of the space, null if the space is not persistent */
+  private SpaceLog log;
+
+  /** Keeps the field values of the entries off the heap, null if not used */
+  private OffHeapStore offHeapStore;
+
+  /** Latencies, lock waits and backlogs, exported as MBeans */
+  private SpaceMetrics metrics;
+
   private static final boolean TAKE = true;
-  private static final int MINUTE = 60 * 1000;
+  /** A long, so leases of many minutes don't overflow */
+  private static final long MINUTE = 60 * 1000L;
   private static final int PERIOD = 15 * 60 * 1000;
 
+  /** Notification settings, may be set as system properties */
+  private static final int NOTIFY_SHARDS =
+      Integer.getInteger("space.notify.shards",
+                         Runtime.getRuntime().availableProcessors()).intValue();
+  private static final int NOTIFY_THREADS =
+      Integer.getInteger("space.notify.threads", 8).intValue();
+  private static final int NOTIFY_QUEUE =
+      Integer.getInteger("space.notify.queue", 10000).intValue();
+  private static final int NOTIFY_TIMEOUT =
+      Integer.getInteger("space.notify.timeout", 10 * 1000).intValue();
+
+  /** Path of the log file, the space is persistent if set */
+  private static final String LOG_FILE = System.getProperty("space.log");
+
+  /** The order entries are taken in: "fifo", "priority:field" or unordered
+   * if not set */
+  private static final TakeOrder TAKE_ORDER =
+      TakeOrder.forName(System.getProperty("space.order"));
+
+  /** The SpaceFields a lookup of every thread goes over, reused by its next
+   * lookup */
+  private static final ThreadLocal scratchFields = new ThreadLocal() {
+    protected Object initialValue() {
+      return new ArrayList();
+    }
+  };
+
+  /** Size in MB of the off heap slabs, the values of the entries are kept
+   * on the heap if 0 */
+  private static final int OFF_HEAP_SLAB =
+      Integer.getInteger("space.offheap", 0).intValue();
+
   public SpaceServer() throws RemoteException {
   }
 
   /** Initialize the system */
   public void init(Registry r) {
-    try {
-      r.rebind("Space", this);
+    // system initialization
+    db = new ConcurrentHashMap(64, 0.75f,
+                               Runtime.getRuntime().availableProcessors());
+    hierarchy = new ClassHierarchy();
+    if (OFF_HEAP_SLAB > 0) {
+      offHeapStore = new OffHeapStore(OFF_HEAP_SLAB * 1024 * 1024);
     }
-    catch (Exception ex) {
-      System.out.println("Error binding the server: " + ex.toString());
-      ex.printStackTrace();
-      System.exit(1);
+    dispatcher = new NotificationDispatcher(NOTIFY_THREADS, NOTIFY_QUEUE,
+                                            NOTIFY_TIMEOUT);
+    requestsThreads = new RequestsThread[Math.max(1, NOTIFY_SHARDS)];
+    for (int i = 0; i < requestsThreads.length; i++) {
+      requestsThreads[i] = new RequestsThread(hierarchy, dispatcher);
+      requestsThreads[i].start();
     }
-    // system initialization
-    db = new Hashtable();
-    dbSem = new RWSemaphore();
-    requestsThread = new RequestsThread();
-    requestsThread.start();
     disposalsThread = new DisposalsThread();
     disposalsThread.start();
-    npfThread = new NoPublicFieldsThread();
+    leaseWheel = new LeaseWheel(disposalsThread);
+    leaseWheel.start();
+    npfThread = new NoPublicFieldsThread(hierarchy);
     npfThread.start();
 
     timer = new Timer();
     cleaningTask = new CleaningTask(this);
     timer.schedule(cleaningTask, PERIOD, PERIOD);
+    dispatcher.start(timer);
 
-    //allows all threads finish initial work.
+    if (LOG_FILE != null) {
+      log = new SpaceLog(new File(LOG_FILE));
+    }
+    metrics = new SpaceMetrics(requestsThreads, disposalsThread, dispatcher,
+                               leaseWheel, log, offHeapStore);
     try {
-      Thread.currentThread().sleep(1000);
+      metrics.register();
+    }
+    catch (Exception ex) {
+      System.out.println("Error registering the MBeans: " + ex.toString());
+      ex.printStackTrace();
     }
-    catch (InterruptedException ex1) {
-      System.out.println("Error binding the server: " + ex1.toString());
-      ex1.printStackTrace();
+
+    if (log != null) {
+      recover();
+    }
+
+    // the threads are ready once started, clients are let in last
+    try {
+      r.rebind("Space", this);
+    }
+    catch (Exception ex) {
+      System.out.println("Error binding the server: " + ex.toString());
+      ex.printStackTrace();
       System.exit(1);
     }
   }
 
+  /** Stores the objects of the log left by the previous run, with the rest
+   * of their leases. They are stored in bulk like a writeAll, and their
+   * entries are read from the log only when needed. */
+  private void recover() {
+    List recovered;
+    try {
+      recovered = log.recover();
+    }
+    catch (IOException ex) {
+      System.out.println("Error recovering the log: " + ex.toString());
+      ex.printStackTrace();
+      System.exit(1);
+      return;
+    }
+    log.start();
+    List objs = new ArrayList(recovered.size());
+    Set classes = new HashSet();
+    long now = System.currentTimeMillis();
+    Iterator i = recovered.iterator();
+    while (i.hasNext()) {
+      Object[] o = (Object[]) i.next();
+      SpaceObj obj = (SpaceObj) o[0];
+      if (classes.add(obj.getObjClass()) &&
+          hierarchy.addClass(obj.getObjClass())) {
+        npfThread.checkClass(obj.getObjClass());
+      }
+      leaseWheel.schedule(obj, ( (Long) o[1]).longValue() - now);
+      objs.add(obj);
+    }
+    storeAll(objs);
+    System.out.println(objs.size() + " entries recovered");
+
+    // requests whose entry is in the space are notified at once
+    List requests = log.getRecoveredRequests();
+    i = requests.iterator();
+    while (i.hasNext()) {
+      Object[] request = (Object[]) i.next();
+      SpaceObj templateObj = (SpaceObj) request[0];
+      RemoteEventListener l = (RemoteEventListener) request[1];
+      SpaceObj correlated = findCorrelatedObj(templateObj, !TAKE);
+      if (correlated != null) {
+        templateObj.invalidate();
+        dispatcher.dispatch(l, correlated.getEntry());
+      }
+      else {
+        requestsThread(templateObj.getObjClass()).addRequest(templateObj, l);
+      }
+    }
+    System.out.println(requests.size() + " requests recovered");
+  }
+
   /** Writes a new entry to the space system */
   public void write(Entry obj, Integer min) throws RemoteException {
+    long start = System.nanoTime();
+    writeEntry(obj, min);
+    metrics.write.record(System.nanoTime() - start);
+  }
+
+  /** Writes a new entry. It is published only once it is logged, so a
+   * failed write leaves nothing in the space. */
+  private void writeEntry(Entry obj, Integer min) throws RemoteException {
     if (obj == null) {
       return;
     }
+    if (min == null) {
+      System.out.println("Error writing entry: no lease");
+      return;
+    }
+    long lease = min.intValue() * MINUTE;
     SpaceObj newObj;
     try {
       newObj = new SpaceObj(obj);
-      RemoveObjTask rot = new RemoveObjTask(newObj, disposalsThread);
-      newObj.setRemoveTask(rot);
-      timer.schedule(rot, min.intValue() * MINUTE);
-      npfThread.checkClass(newObj.getObjClass());
-      requestsThread.addObj(newObj);
-      // here we give it to the new class
+      if (log != null) {
+        log.logWrite(newObj, System.currentTimeMillis() + lease);
+      }
+      if (hierarchy.addClass(newObj.getObjClass())) {
+        npfThread.checkClass(newObj.getObjClass());
+      }
     }
     catch (Exception ex) {
       System.out.println("Error writing entry " + ex.toString());
       ex.printStackTrace();
       return;
     }
+    syncLog();
+    leaseWheel.schedule(newObj, lease);
     // no public fields
     if (newObj.getEntryFields().isEmpty()) {
       npfThread.addObj(newObj);
+      addToRequests(newObj);
       return;
     }
-    List publicFields = newObj.getEntryFields();
-    LinkedList fieldToCreate = new LinkedList();
-    LinkedList fieldToUpdate = new LinkedList();
-    Iterator i1 = publicFields.iterator();
-    dbSem.aquireReadersLock();
-    while (i1.hasNext()) {
-      Field field = (Field) i1.next();
-      FieldKey key = new FieldKey(field);
-      SpaceField sf = (SpaceField) db.get(key);
-      if (sf == null) {
-        fieldToCreate.add(field);
+    FieldKey[] keys = newObj.getKeys();
+    for (int j = 0; j < keys.length; j++) {
+      SpaceField sf = getOrCreateField(keys[j]);
+      while (!sf.addEntry(newObj)) {
+        sf = replaceField(keys[j], sf);
+      }
+    }
+    if (offHeapStore != null) {
+      newObj.storeOffHeap(offHeapStore);
+    }
+    newObj.validate();
+    // requests see the object once it can be read
+    addToRequests(newObj);
+  }
+
+  /** Writes a batch of entries with the same lease. Every SpaceField and
+   * FieldValue is locked once for all the entries under it. */
+  public void writeAll(Entry[] objs, Integer min) throws RemoteException {
+    long start = System.nanoTime();
+    writeEntries(objs, min);
+    metrics.writeAll.record(System.nanoTime() - start);
+  }
+
+  /** Writes a batch of entries. They are published only once they are
+   * logged, so a failed write leaves none of them in the space. */
+  private void writeEntries(Entry[] objs, Integer min) throws
+      RemoteException {
+    if (objs == null) {
+      return;
+    }
+    if (min == null) {
+      System.out.println("Error writing entries: no lease");
+      return;
+    }
+    long lease = min.intValue() * MINUTE;
+    List newObjs = new ArrayList(objs.length);
+    long expiration = System.currentTimeMillis() + lease;
+    Set classes = new HashSet();
+    for (int j = 0; j < objs.length; j++) {
+      if (objs[j] == null) {
+        continue;
+      }
+      SpaceObj newObj;
+      try {
+        newObj = new SpaceObj(objs[j]);
+        if (log != null) {
+          log.logWrite(newObj, expiration);
+        }
+      }
+      catch (Exception ex) {
+        System.out.println("Error writing entry " + ex.toString());
+        ex.printStackTrace();
         continue;
       }
-      fieldToUpdate.add(sf);
+      if (classes.add(newObj.getObjClass()) &&
+          hierarchy.addClass(newObj.getObjClass())) {
+        npfThread.checkClass(newObj.getObjClass());
+      }
+      newObjs.add(newObj);
     }
-    dbSem.releaseLock();
-    if (!fieldToCreate.isEmpty()) {
-      dbSem.aquireWriterLock();
-      Iterator i2 = fieldToCreate.iterator();
-      while (i2.hasNext()) {
-        Field field = (Field) i2.next();
-        FieldKey key = new FieldKey(field);
-        SpaceField sf = (SpaceField) db.get(key);
-        if (sf == null) {
-          sf = new SpaceField(field, disposalsThread, cleaningTask);
-          db.put(key, sf);
+    if (newObjs.isEmpty()) {
+      return;
+    }
+    syncLog();
+    leaseWheel.scheduleAll(newObjs, lease);
+    storeAll(newObjs);
+  }
+
+  /** Adds a batch of new objects to the database. Every SpaceField and
+   * FieldValue is locked once for all the objects under it. */
+  private void storeAll(List newObjs) {
+    // objects with public fields, grouped by field
+    Map byField = new HashMap();
+    Iterator i = newObjs.iterator();
+    while (i.hasNext()) {
+      SpaceObj newObj = (SpaceObj) i.next();
+      FieldKey[] keys = newObj.getKeys();
+      for (int j = 0; j < keys.length; j++) {
+        FieldKey key = keys[j];
+        List l = (List) byField.get(key);
+        if (l == null) {
+          l = new ArrayList();
+          byField.put(key, l);
         }
-        fieldToUpdate.add(sf);
+        l.add(newObj);
       }
-      dbSem.releaseLock();
     }
-    Iterator i3 = fieldToUpdate.iterator();
-    while (i3.hasNext()) {
-      ( (SpaceField) i3.next()).addEntry(newObj);
+    i = byField.entrySet().iterator();
+    while (i.hasNext()) {
+      Map.Entry m = (Map.Entry) i.next();
+      FieldKey key = (FieldKey) m.getKey();
+      SpaceField sf = getOrCreateField(key);
+      while (!sf.addEntries( (List) m.getValue())) {
+        sf = replaceField(key, sf);
+      }
     }
-    newObj.validate();
+    i = newObjs.iterator();
+    while (i.hasNext()) {
+      SpaceObj newObj = (SpaceObj) i.next();
+      // no public fields
+      if (newObj.getEntryFields().isEmpty()) {
+        npfThread.addObj(newObj);
+      }
+      else {
+        if (offHeapStore != null) {
+          newObj.storeOffHeap(offHeapStore);
+        }
+        newObj.validate();
+      }
+    }
+    addToRequests(newObjs);
+  }
+
+  /** Waits until the log records of this thread's writes and takes are on
+   * disk, together with those of other threads (group commit). Throws a
+   * RemoteException if the log failed to write them. Once it failed, the
+   * log writes nothing more. */
+  private void syncLog() throws RemoteException {
+    if (log == null) {
+      return;
+    }
+    try {
+      log.sync();
+    }
+    catch (IOException ex) {
+      throw new RemoteException("Error writing the log", ex);
+    }
+  }
+
+  /** Waits until the removal of the taken objects is logged. If the log
+   * failed, they are put back before the RemoteException is thrown, so a
+   * failed take loses no entry. */
+  private void syncTaken(List taken) throws RemoteException {
+    try {
+      syncLog();
+    }
+    catch (RemoteException ex) {
+      restore(taken);
+      throw ex;
+    }
+  }
+
+  /** Stores again objects whose removal the log failed to write. The log
+   * still holds them and writes nothing more, so they are stored as new
+   * objects without a record, with the rest of their leases. */
+  private void restore(List taken) {
+    List objs = new ArrayList(taken.size());
+    long now = System.currentTimeMillis();
+    Iterator i = taken.iterator();
+    while (i.hasNext()) {
+      SpaceObj obj = (SpaceObj) i.next();
+      SpaceObj restored;
+      try {
+        restored = new SpaceObj(obj.getEntry());
+      }
+      catch (Exception ex) {
+        System.out.println("Error restoring entry " + ex.toString());
+        ex.printStackTrace();
+        continue;
+      }
+      leaseWheel.schedule(restored, leaseWheel.getExpiration(obj) - now);
+      objs.add(restored);
+    }
+    storeAll(objs);
+  }
+
+  /** Returns the SpaceField of the given FieldKey, creating it if missing.
+   * When two writers create the same SpaceField, the first one put is used
+   * by both. */
+  private SpaceField getOrCreateField(FieldKey key) {
+    SpaceField sf = (SpaceField) db.get(key);
+    if (sf == null) {
+      sf = new SpaceField(key.field, disposalsThread, cleaningTask,
+                          hierarchy, TAKE_ORDER, metrics);
+      SpaceField other = (SpaceField) db.putIfAbsent(key, sf);
+      if (other != null) {
+        sf = other;
+      }
+    }
+    return sf;
+  }
+
+  /** Returns the SpaceField that replaces one the cleaner retired. The
+   * cleaner may not have removed the retired one yet, so it is removed
+   * here too. */
+  private SpaceField replaceField(FieldKey key, SpaceField retired) {
+    removeField(key, retired);
+    return getOrCreateField(key);
+  }
+
+  /** Removes the given SpaceField, if it is still the one of the key.
+   * SpaceFields of the same field are equal, so db.remove(key, sf) would
+   * remove the one that replaced it too. */
+  private void removeField(FieldKey key, final SpaceField sf) {
+    db.computeIfPresent(key, new BiFunction() {
+      public Object apply(Object k, Object current) {
+        return current == sf ? null : current;
+      }
+    });
   }
 
   /** Reads an entry from the  space system */
@@ -145,7 +450,10 @@ public class SpaceServer
     if (template == null) {
       return null;
     }
-    return findCorrelatedObj(template, !TAKE);
+    long start = System.nanoTime();
+    Entry e = toEntry(findCorrelatedObj(template, !TAKE));
+    metrics.read.record(System.nanoTime() - start);
+    return e;
   }
 
   /** Takes an entry from the  space system */
@@ -153,7 +461,86 @@ public class SpaceServer
     if (template == null) {
       return null;
     }
-    return findCorrelatedObj(template, TAKE);
+    long start = System.nanoTime();
+    SpaceObj obj = findCorrelatedObj(template, TAKE);
+    if (obj != null) {
+      syncTaken(Collections.singletonList(obj));
+    }
+    Entry e = toEntry(obj);
+    metrics.take.record(System.nanoTime() - start);
+    return e;
+  }
+
+  /** Reads an entry from the  space system, waiting up to timeout
+   * milliseconds for a correlated entry to be written */
+  public Entry read(Entry template, long timeout) throws RemoteException {
+    long start = System.nanoTime();
+    Entry e = toEntry(waitForObj(template, !TAKE, timeout));
+    metrics.readWait.record(System.nanoTime() - start);
+    return e;
+  }
+
+  /** Takes an entry from the  space system, waiting up to timeout
+   * milliseconds for a correlated entry to be written */
+  public Entry take(Entry template, long timeout) throws RemoteException {
+    long start = System.nanoTime();
+    SpaceObj obj = waitForObj(template, TAKE, timeout);
+    if (obj != null) {
+      syncTaken(Collections.singletonList(obj));
+    }
+    Entry e = toEntry(obj);
+    metrics.takeWait.record(System.nanoTime() - start);
+    return e;
+  }
+
+  /** Reads up to max entries from the  space system */
+  public Entry[] readMultiple(Entry template, int max) throws RemoteException {
+    if (template == null || max <= 0) {
+      return new Entry[0];
+    }
+    long start = System.nanoTime();
+    Entry[] entries = toEntries(findCorrelatedObjs(template, !TAKE, max));
+    metrics.readMultiple.record(System.nanoTime() - start);
+    return entries;
+  }
+
+  /** Takes up to max entries from the  space system */
+  public Entry[] takeMultiple(Entry template, int max) throws RemoteException {
+    if (template == null || max <= 0) {
+      return new Entry[0];
+    }
+    long start = System.nanoTime();
+    List taken = findCorrelatedObjs(template, TAKE, max);
+    if (!taken.isEmpty()) {
+      syncTaken(taken);
+    }
+    Entry[] entries = toEntries(taken);
+    metrics.takeMultiple.record(System.nanoTime() - start);
+    return entries;
+  }
+
+  /** Reads up to max entries correlated with the template whose fields are
+   * in the given ranges */
+  public Entry[] readRange(Entry template, Range[] ranges, int max) throws
+      RemoteException {
+    long start = System.nanoTime();
+    Entry[] entries = toEntries(findInRange(template, ranges, !TAKE, max));
+    metrics.readRange.record(System.nanoTime() - start);
+    return entries;
+  }
+
+  /** Takes up to max entries correlated with the template whose fields are
+   * in the given ranges */
+  public Entry[] takeRange(Entry template, Range[] ranges, int max) throws
+      RemoteException {
+    long start = System.nanoTime();
+    List taken = findInRange(template, ranges, TAKE, max);
+    if (!taken.isEmpty()) {
+      syncTaken(taken);
+    }
+    Entry[] entries = toEntries(taken);
+    metrics.takeRange.record(System.nanoTime() - start);
+    return entries;
   }
 
   /** Registers an entry from the  space system */
@@ -162,100 +549,227 @@ public class SpaceServer
     if (template == null) {
       return;
     }
-    Entry correlated = findCorrelatedObj(template, !TAKE);
+    long start = System.nanoTime();
+    registerRequest(template, l);
+    metrics.register.record(System.nanoTime() - start);
+  }
+
+  /** Notifies the listener of a correlated entry, or keeps the request
+   * until one is written */
+  private void registerRequest(Entry template, RemoteEventListener l) throws
+      RemoteException {
+    SpaceObj correlated = findCorrelatedObj(template, !TAKE);
     if (correlated != null) {
-      l.notify(correlated);
+      l.notify(correlated.getEntry());
       return;
     }
+    SpaceObj templateObj;
     try {
-      requestsThread.addRequest(new SpaceObj(template), l);
+      if (log != null) {
+        templateObj = SpaceObj.request(template, 0);
+        logRegister(templateObj, template, l);
+      }
+      else {
+        templateObj = SpaceObj.template(template);
+      }
     }
     catch (Exception ex) {
       System.out.println("Error: " + ex.toString());
       ex.printStackTrace();
+      return;
+    }
+    // the request is matched only once it is logged
+    syncLog();
+    requestsThread(templateObj.getObjClass()).addRequest(templateObj, l);
+  }
+
+  /** Logs a request, so it outlives a restart. A listener that can't be
+   * serialized is registered for this run only. */
+  private void logRegister(SpaceObj templateObj, Entry template,
+                           RemoteEventListener l) {
+    try {
+      log.logRegister(templateObj, template, l);
+    }
+    catch (IOException ex) {
+      System.out.println("Error logging the request, it is not persistent " +
+                         ex.toString());
+    }
+  }
+
+  /** Finds a correlated entry to the given template, or waits for one to be
+   * written. The waiter is registered before looking in the space, so no entry
+   * written meanwhile is missed. */
+  private SpaceObj waitForObj(Entry template, boolean take, long timeout) throws
+      RemoteException {
+    if (template == null) {
+      return null;
+    }
+    SpaceObj templateObj;
+    try {
+      templateObj = SpaceObj.template(template);
+    }
+    catch (Exception ex) {
+      System.out.println("Error reading entry " + ex.toString());
+      ex.printStackTrace();
+      return null;
+    }
+    if (timeout <= 0) {
+      return findCorrelatedObj(templateObj, take);
+    }
+    Waiter waiter = new Waiter(take, disposalsThread);
+    Object[] request = {
+        templateObj, waiter};
+    RequestsThread rt = requestsThread(templateObj.getObjClass());
+    rt.addRequest(request);
+    // objects offered meanwhile are kept by the waiter until the lookup ends
+    SpaceObj obj = findCorrelatedObj(templateObj, take);
+    if (obj != null) {
+      waiter.cancel();
+    }
+    else {
+      obj = waiter.acceptOffered();
+      if (obj == null) {
+        obj = waiter.await(timeout);
+        if (waiter.isServed()) {
+          return obj;
+        }
+      }
+    }
+    // the request is still registered, unless the waiter was served by
+    // an offer after the lookup
+    rt.removeRequest(request);
+    return obj;
+  }
+
+  /** Returns the RequestsThread holding the requests of the template class */
+  private RequestsThread requestsThread(Class cls) {
+    return requestsThreads[ (cls.hashCode() & 0x7fffffff) %
+        requestsThreads.length];
+  }
+
+  /** Hands a batch of written objects to the RequestsThreads,
+   * a single list to each of them. The threads already handed an object
+   * are found by going over its few super classes again. */
+  private void addToRequests(List objs) {
+    Map batches = new HashMap();
+    Iterator i = objs.iterator();
+    while (i.hasNext()) {
+      SpaceObj obj = (SpaceObj) i.next();
+      Class[] classes = hierarchy.getSuperClasses(obj.getObjClass());
+      for (int j = 0; j < classes.length; j++) {
+        RequestsThread rt = requestsThread(classes[j]);
+        boolean handed = false;
+        for (int k = 0; k < j && !handed; k++) {
+          handed = requestsThread(classes[k]) == rt;
+        }
+        if (!handed) {
+          List batch = (List) batches.get(rt);
+          if (batch == null) {
+            batch = new ArrayList();
+            batches.put(rt, batch);
+          }
+          batch.add(obj);
+        }
+      }
+    }
+    i = batches.entrySet().iterator();
+    while (i.hasNext()) {
+      Map.Entry m = (Map.Entry) i.next();
+      ( (RequestsThread) m.getKey()).addObjs( (List) m.getValue());
+    }
+  }
+
+  /** Hands a written object to every RequestsThread holding requests
+   * of one of its super classes. A class has few super classes, so the
+   * threads already handed the object are found by going over them again. */
+  private void addToRequests(SpaceObj obj) {
+    Class[] classes = hierarchy.getSuperClasses(obj.getObjClass());
+    for (int i = 0; i < classes.length; i++) {
+      RequestsThread rt = requestsThread(classes[i]);
+      boolean handed = false;
+      for (int j = 0; j < i && !handed; j++) {
+        handed = requestsThread(classes[j]) == rt;
+      }
+      if (!handed) {
+        rt.addObj(obj);
+      }
     }
   }
 
   /** Finds a correlated entry to the given template.
-   * Removes the entry from the system if the TAKE flag is on. */
-  private Entry findCorrelatedObj(Entry template, boolean take) throws
+   * Removes the entry from the system if the TAKE flag is on.
+   * The lookup does not keep the template, so the thread's one is reused. */
+  private SpaceObj findCorrelatedObj(Entry template, boolean take) throws
       RemoteException {
     SpaceObj templateObj;
     try {
-      templateObj = new SpaceObj(template);
+      templateObj = SpaceObj.scratchTemplate(template);
     }
     catch (Exception ex) {
       System.out.println("Error reading entry " + ex.toString());
       ex.printStackTrace();
       return null;
     }
+    return findCorrelatedObj(templateObj, take);
+  }
+
+  /** Finds a correlated entry to the given template object.
+   * Removes the entry from the system if the TAKE flag is on. */
+  private SpaceObj findCorrelatedObj(SpaceObj templateObj, boolean take) {
 
     // no public fields
     boolean noPublicFields = false;
-    Set subClassFields = new HashSet();
+    Set subClassFields = null;
     if (templateObj.getEntryFields().isEmpty()) {
       Object o = npfThread.findCorrelatedObj(templateObj, take);
       //entry found
-      if (o instanceof Entry) {
-        return (Entry) o;
+      if (o instanceof SpaceObj) {
+        return (SpaceObj) o;
       }
       //entry not found, a set of all subclasses fields is returned
       noPublicFields = true;
       subClassFields = (Set) o;
     }
 
-    // all relevant SpaceFields will be held in this list
-    List spaceFields = new LinkedList();
-
-    //go over all template's public fields, if one doesn't exists, return
-    Iterator i = templateObj.getEntryFields().iterator();
+    //go over all template's public fields, or all subclasses fields
+    Collection fields = templateObj.getEntryFields();
     if (noPublicFields && subClassFields != null) {
-      i = subClassFields.iterator();
+      fields = subClassFields;
     }
-    dbSem.aquireReadersLock();
-    while (i.hasNext()) {
-      Field field = (Field) i.next();
-      FieldKey key = new FieldKey(field);
-      SpaceField sf = (SpaceField) db.get(key);
-      if (sf == null && !noPublicFields) {
-        dbSem.releaseLock();
-        return null;
-      }
-      //if no public fields, continue
-      if (sf == null) {
-        continue;
+
+    // a read goes over the levels without locking, unless a writer interferes
+    if (!take) {
+      try {
+        return readOptimistic(templateObj, fields, noPublicFields);
       }
-      if (sf.isEmpty()) {
-        cleaningTask.addField(sf);
+      catch (OptimisticReadConflict ex) {
+        // conflict with a writer, read again under the locks
       }
-      spaceFields.add(sf);
     }
-    dbSem.releaseLock();
+
+    List spaceFields = getSpaceFields(templateObj, fields, noPublicFields);
 
     // no relevant fields in the database
-    if (spaceFields.isEmpty()) {
+    if (spaceFields == null || spaceFields.isEmpty()) {
       return null;
     }
 
-    // if at least one of the templates fields is not null, take only those fields
-    if (!templateObj.getObjFields().isEmpty()) {
-      Map objFields = templateObj.getObjFields();
-      i = spaceFields.iterator();
-      while (i.hasNext()) {
-        if (!objFields.containsKey( ( (SpaceField) i.next()).getField().getName())) {
-          i.remove();
-        }
+    // look in the most selective of the template's values
+    if (templateObj.hasValues()) {
+      FieldValue lookupValue = selectValue(spaceFields, templateObj);
+      if (lookupValue == null) {
+        return null;
       }
+      return lookupValue.findCorellatedObj(templateObj, take);
     }
 
     // look for a field which is not held by a writer, or has the min waiting list
     int shortestQueue = Integer.MAX_VALUE;
     SpaceField lookupField = null;
-    i = spaceFields.iterator();
-    while (i.hasNext()) {
-      SpaceField sf = (SpaceField) i.next();
+    for (int j = 0; j < spaceFields.size(); j++) {
+      SpaceField sf = (SpaceField) spaceFields.get(j);
       if (!sf.lockedByWriter()) {
-        return sf.findCorellatedEntry(templateObj, take);
+        return sf.findCorellatedObj(templateObj, take);
       }
       if (sf.getWaitingNo() < shortestQueue) {
         shortestQueue = sf.getWaitingNo();
@@ -263,44 +777,250 @@ public class SpaceServer
       }
     }
     //maximum one field is choosed
-    return lookupField.findCorellatedEntry(templateObj, take);
+    return lookupField.findCorellatedObj(templateObj, take);
   }
 
-  /** If a field is not used any more, the system cleaner calls this function */
-  public void cleanFields(Set fields) {
-    dbSem.aquireWriterLock();
+  /** Finds up to max correlated entries to the given template in one pass,
+   * every level of the database is locked once.
+   * Removes the entries from the system if the TAKE flag is on.
+   * The lookup does not keep the template, so the thread's one is reused. */
+  private List findCorrelatedObjs(Entry template, boolean take, int max) {
+    SpaceObj templateObj;
+    try {
+      templateObj = SpaceObj.scratchTemplate(template);
+    }
+    catch (Exception ex) {
+      System.out.println("Error reading entry " + ex.toString());
+      ex.printStackTrace();
+      return Collections.EMPTY_LIST;
+    }
+    return findCorrelatedObjs(templateObj, take, max);
+  }
+
+  /** Finds up to max correlated entries to the given template and ranges.
+   * Unless the template has values to look in, the values of the first range
+   * are looked in, in order. Removes the entries if the TAKE flag is on. */
+  private List findInRange(Entry template, Range[] ranges, boolean take,
+                              int max) {
+    if (template == null || max <= 0) {
+      return Collections.EMPTY_LIST;
+    }
+    if (ranges == null) {
+      ranges = new Range[0];
+    }
+    SpaceObj templateObj;
+    Field[] rangeFields = new Field[ranges.length];
+    try {
+      templateObj = SpaceObj.template(template);
+      for (int j = 0; j < ranges.length; j++) {
+        rangeFields[j] = templateObj.getObjClass().getField(ranges[j].
+            getFieldName());
+      }
+      templateObj.setRanges(rangeFields, ranges);
+    }
+    catch (Exception ex) {
+      System.out.println("Error reading entry " + ex.toString());
+      ex.printStackTrace();
+      return Collections.EMPTY_LIST;
+    }
+    if (ranges.length == 0 || templateObj.hasValues()) {
+      return findCorrelatedObjs(templateObj, take, max);
+    }
+    List found = new ArrayList();
+    SpaceField sf = (SpaceField) db.get(new FieldKey(rangeFields[0]));
+    if (sf != null) {
+      sf.findInRange(ranges[0], templateObj, take, max, found);
+    }
+    return found;
+  }
+
+  /** Finds up to max correlated entries to the given template object.
+   * Removes the entries from the system if the TAKE flag is on. */
+  private List findCorrelatedObjs(SpaceObj templateObj, boolean take,
+                                     int max) {
+    List found = new ArrayList();
+
+    // no public fields
+    boolean noPublicFields = templateObj.getEntryFields().isEmpty();
+    Collection fields = templateObj.getEntryFields();
+    if (noPublicFields) {
+      Set subClassFields = npfThread.findCorrelatedObjs(templateObj, take, max,
+          found);
+      if (subClassFields != null) {
+        fields = subClassFields;
+      }
+    }
+
+    if (found.size() < max) {
+      List spaceFields = getSpaceFields(templateObj, fields, noPublicFields);
+      if (spaceFields != null && !spaceFields.isEmpty()) {
+        if (templateObj.hasValues()) {
+          FieldValue lookupValue = selectValue(spaceFields, templateObj);
+          if (lookupValue != null) {
+            lookupValue.findCorellatedEntries(templateObj, take, max, found,
+                                              null);
+          }
+        }
+        else if (!noPublicFields) {
+          // every field holds all the candidates
+          ( (SpaceField) spaceFields.get(0)).findCorellatedEntries(templateObj,
+              take, max, found, null);
+        }
+        else {
+          // the fields are of different subclasses, an object may be in
+          // several: the ones found already are skipped, so they don't use
+          // up max and every field is looked in until max are found
+          LongMap seen = new LongMap();
+          for (int j = 0; j < found.size(); j++) {
+            SpaceObj obj = (SpaceObj) found.get(j);
+            seen.put(obj.getId(), obj);
+          }
+          for (int j = 0; j < spaceFields.size() && found.size() < max; j++) {
+            ( (SpaceField) spaceFields.get(j)).findCorellatedEntries(
+                templateObj, take, max, found, seen);
+          }
+        }
+      }
+    }
+
+    return found;
+  }
+
+  /** Returns the entry of the found object, or null */
+  private static Entry toEntry(SpaceObj obj) {
+    return obj == null ? null : obj.getEntry();
+  }
+
+  /** Returns the entries of the found objects */
+  private Entry[] toEntries(List found) {
+    Entry[] entries = new Entry[found.size()];
+    for (int j = 0; j < entries.length; j++) {
+      entries[j] = ( (SpaceObj) found.get(j)).getEntry();
+    }
+    return entries;
+  }
+
+  /** Returns the SpaceFields to look in for the given template fields,
+   * or null if one of them doesn't exist and the template has public fields.
+   * The top level is read without locking. The list is the thread's scratch
+   * list, valid until its next lookup. */
+  private List getSpaceFields(SpaceObj templateObj, Collection fields,
+                              boolean noPublicFields) {
+    // all relevant SpaceFields will be held in this list
+    List spaceFields = (List) scratchFields.get();
+    spaceFields.clear();
+    if (!noPublicFields) {
+      // the template's own fields, by their cached keys
+      FieldKey[] keys = templateObj.getKeys();
+      for (int j = 0; j < keys.length; j++) {
+        SpaceField sf = (SpaceField) db.get(keys[j]);
+        if (sf == null) {
+          return null;
+        }
+        addSpaceField(spaceFields, sf, templateObj);
+      }
+      return spaceFields;
+    }
     Iterator i = fields.iterator();
     while (i.hasNext()) {
-      SpaceField f = (SpaceField) i.next();
-      if (f.isEmpty()) {
-        db.remove(new FieldKey(f.getField()));
+      SpaceField sf = (SpaceField) db.get(new FieldKey( (Field) i.next()));
+      //if no public fields, continue
+      if (sf != null) {
+        addSpaceField(spaceFields, sf, templateObj);
       }
     }
-    dbSem.releaseLock();
+    return spaceFields;
   }
 
-}
+  /** Adds a SpaceField to look in, unless the template has values and its
+   * value of this field is null */
+  private void addSpaceField(List spaceFields, SpaceField sf,
+                             SpaceObj templateObj) {
+    if (sf.isEmpty()) {
+      cleaningTask.addField(sf);
+    }
+    // if at least one of the templates fields is not null, take only those fields
+    if (!templateObj.hasValues() ||
+        templateObj.getValue(sf.getField()) != null) {
+      spaceFields.add(sf);
+    }
+  }
 
-/**
- *  FieldKey is used as key for the db hashtable.
- */
-class FieldKey {
-  public final String name;
-  public final Class cls;
+  /** Returns the FieldValue holding the fewest candidates among the
+   * template's values of the given fields, or null if no object has one of
+   * the values. Every candidate must be under all these values, so the
+   * smallest one bounds the scan. Only the objects of the template's class
+   * and its sub-classes are counted, those are the ones scanned. */
+  private FieldValue selectValue(List spaceFields, SpaceObj templateObj) {
+    FieldValue selected = null;
+    int selectedNo = 0;
+    for (int j = 0; j < spaceFields.size(); j++) {
+      FieldValue fv = ( (SpaceField) spaceFields.get(j)).getFieldValue(
+          templateObj);
+      if (fv == null) {
+        return null;
+      }
+      int candidates = fv.candidates(templateObj);
+      if (selected == null || candidates < selectedNo ||
+          (candidates == selectedNo &&
+           fv.getWaitingNo() < selected.getWaitingNo())) {
+        selected = fv;
+        selectedNo = candidates;
+      }
+    }
+    return selected;
+  }
 
-  FieldKey(Field f) {
-    this.name = f.getName();
-    this.cls = f.getDeclaringClass();
+  /** Reads a correlated entry without locking any level of the database.
+   * Throws OptimisticReadConflict if a writer changed one of the lower
+   * levels meanwhile. */
+  private SpaceObj readOptimistic(SpaceObj templateObj, Collection fields,
+                               boolean noPublicFields) {
+    List spaceFields = getSpaceFields(templateObj, fields, noPublicFields);
+    if (spaceFields == null) {
+      return null;
+    }
+    if (templateObj.hasValues()) {
+      FieldValue lookupValue = selectValue(spaceFields, templateObj);
+      if (lookupValue == null) {
+        return null;
+      }
+      return lookupValue.readOptimistic(templateObj);
+    }
+    // every field holds all the candidates, unless the fields are of subclasses
+    SpaceObj obj = null;
+    for (int j = 0; obj == null && j < spaceFields.size(); j++) {
+      obj = ( (SpaceField) spaceFields.get(j)).readOptimistic(templateObj);
+      if (!noPublicFields) {
+        break;
+      }
+    }
+    return obj;
   }
 
-  public boolean equals(Object o) {
-    return (o instanceof FieldKey) &&
-        (this.name.equals( ( (FieldKey) o).name)) &&
-        (this.cls.equals( ( (FieldKey) o).cls));
+  /** Returns the statistics of every field in the database, with up to
+   * topValues of the largest values of each one */
+  public FieldStats[] getFieldStats(int topValues) {
+    List stats = new ArrayList();
+    Iterator i = db.values().iterator();
+    while (i.hasNext()) {
+      stats.add( ( (SpaceField) i.next()).getStats(topValues));
+    }
+    return (FieldStats[]) stats.toArray(new FieldStats[stats.size()]);
   }
 
-  public int hashCode() {
-    return name.hashCode();
+  /** If a field is not used any more, the system cleaner calls this function.
+   * Writers don't lock the top level, so the field is retired under its own
+   * writer lock first, and a writer that finds it retired adds to a new
+   * one. */
+  public void cleanFields(Set fields) {
+    Iterator i = fields.iterator();
+    while (i.hasNext()) {
+      SpaceField f = (SpaceField) i.next();
+      if (f.retire()) {
+        removeField(new FieldKey(f.getField()), f);
+      }
+    }
   }
 
 }
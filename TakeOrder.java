@@ -0,0 +1,69 @@
+import java.lang.reflect.Field;
+import java.util.Comparator;
+
+/**
+ * <p>Title: TakeOrder </p>
+ * <p>Description: The order in which correlated objects are read and taken:
+ * first written first (FIFO), or highest value of a priority field first and
+ * first written among equal priorities. Objects without the priority field,
+ * or with a null value, come after the others.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class TakeOrder
+    implements Comparator {
+
+  /** Name of the priority field, null for FIFO */
+  private final String priorityField;
+
+  private TakeOrder(String priorityField) {
+    this.priorityField = priorityField;
+  }
+
+  /** Returns the order given as "fifo" or "priority:field", or null for
+   * no order */
+  public static TakeOrder forName(String name) {
+    if (name == null) {
+      return null;
+    }
+    if (name.equals("fifo")) {
+      return new TakeOrder(null);
+    }
+    if (name.startsWith("priority:")) {
+      return new TakeOrder(name.substring("priority:".length()));
+    }
+    System.out.println("Unknown take order " + name + ", entries are unordered");
+    return null;
+  }
+
+  public int compare(Object o1, Object o2) {
+    SpaceObj a = (SpaceObj) o1;
+    SpaceObj b = (SpaceObj) o2;
+    if (priorityField != null) {
+      int c = comparePriorities(priority(a), priority(b));
+      if (c != 0) {
+        return c;
+      }
+    }
+    // ids grow with the writes
+    return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+  }
+
+  /** Returns the value of the priority field of the object, or null */
+  private Object priority(SpaceObj obj) {
+    Field field = EntrySchema.forClass(obj.getObjClass()).getField(
+        priorityField);
+    return field == null ? null : obj.getValue(field);
+  }
+
+  /** Orders the higher priority first, and values that can't be compared
+   * by their class */
+  private static int comparePriorities(Object p1, Object p2) {
+    if (p1 == null || p2 == null) {
+      return p1 == null ? (p2 == null ? 0 : 1) : -1;
+    }
+    if (p1.getClass() != p2.getClass() || ! (p1 instanceof Comparable)) {
+      return p1.getClass().getName().compareTo(p2.getClass().getName());
+    }
+    return ( (Comparable) p2).compareTo(p1);
+  }
+}
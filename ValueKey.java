@@ -0,0 +1,37 @@
+/**
+*  ValueKey is used as key for the SpaceField hashtable.
+ */
+class ValueKey {
+  /** Final but for the probe keys */
+  public Object value;
+
+  /** A key of every thread for lookups, never put in a map */
+  private static final ThreadLocal probes = new ThreadLocal() {
+    protected Object initialValue() {
+      return new ValueKey(null);
+    }
+  };
+
+  ValueKey(Object value) {
+    this.value = value;
+  }
+
+  /** Returns the thread's probe key set to the value, so a lookup creates
+   * no key. It must not be kept. */
+  static ValueKey probe(Object value) {
+    ValueKey key = (ValueKey) probes.get();
+    key.value = value;
+    return key;
+  }
+
+  public boolean equals(Object o) {
+    if (value == null)
+      return (o instanceof ValueKey) && ( (ValueKey) o).value == null;
+    return (o instanceof ValueKey) &&
+        (this.value.equals( ( (ValueKey) o).value));
+  }
+
+  public int hashCode() {
+    return value == null ? Integer.MAX_VALUE : value.hashCode();
+  }
+}
@@ -0,0 +1,122 @@
+import java.util.*;
+
+/**
+ * <p>Title: Waiter </p>
+ * <p>Description: A read or take waiting for a correlated entry to be written.
+ * It is kept by a RequestsThread like a registered request, and the
+ * RequestsThread offers it every matching object until one is accepted.
+ * A take accepts only an object it could take itself, so the object goes
+ * to exactly one waiter.
+ * The waiter is registered before its caller looks for an existing object,
+ * and the lookup runs without the waiter's lock. Objects offered meanwhile
+ * are kept, and one of them is accepted only if the lookup found nothing.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class Waiter {
+
+  /** True if the waiter takes the object */
+  private final boolean take;
+
+  /** True once the waiter got an object, timed out or was cancelled */
+  private boolean done = false;
+
+  /** The object handed to this waiter */
+  private SpaceObj obj = null;
+
+  /** True while the caller looks for an existing object */
+  private boolean looking = true;
+
+  /** Objects offered during the lookup, null if none */
+  private List offered = null;
+
+  /** A background thread that removes non-valid objects*/
+  private DisposalsThread disposalsThread;
+
+  public Waiter(boolean take, DisposalsThread disposalsThread) {
+    this.take = take;
+    this.disposalsThread = disposalsThread;
+  }
+
+  /** Offers a written object correlated with the template. The object is
+   * accepted if still valid, and taken if this is a take.
+   * Returns true if this waiter is done and its request may be removed.
+   * During the lookup the object is only kept, and false is returned. */
+  public synchronized boolean offer(SpaceObj written) {
+    if (done) {
+      return true;
+    }
+    if (looking) {
+      if (offered == null) {
+        offered = new ArrayList();
+      }
+      offered.add(written);
+      return false;
+    }
+    return accept(written);
+  }
+
+  /** Ends a lookup that found nothing. Accepts the first object offered
+   * meanwhile that is still valid, and returns it, or null if there is none
+   * and the caller should await. */
+  public synchronized SpaceObj acceptOffered() {
+    looking = false;
+    List l = offered;
+    offered = null;
+    if (done || l == null) {
+      return null;
+    }
+    Iterator i = l.iterator();
+    while (i.hasNext()) {
+      if (accept( (SpaceObj) i.next())) {
+        return obj;
+      }
+    }
+    return null;
+  }
+
+  /** Accepts the object if still valid, taking it if this is a take.
+   * Called with the waiter's lock held. */
+  private boolean accept(SpaceObj written) {
+    synchronized (written) {
+      if (!written.isValid()) {
+        return false;
+      }
+      if (take) {
+        written.invalidate();
+        written.cancelLease();
+        disposalsThread.addObj(written);
+      }
+    }
+    obj = written;
+    done = true;
+    notify();
+    return true;
+  }
+
+  /** Waits up to timeout milliseconds for an object. Returns it, or null
+   * if none was offered in time. */
+  public synchronized SpaceObj await(long timeout) {
+    long end = System.currentTimeMillis() + timeout;
+    long left = timeout;
+    while (!done && left > 0) {
+      try {
+        wait(left);
+      }
+      catch (InterruptedException ex) {}
+      left = end - System.currentTimeMillis();
+    }
+    done = true;
+    return obj;
+  }
+
+  /** Stops accepting objects, once the lookup found one */
+  public synchronized void cancel() {
+    done = true;
+    offered = null;
+  }
+
+  /** Returns true if the waiter got an object */
+  public synchronized boolean isServed() {
+    return obj != null;
+  }
+}
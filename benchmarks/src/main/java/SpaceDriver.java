@@ -0,0 +1,134 @@
+import java.lang.reflect.*;
+import java.rmi.registry.*;
+import java.util.*;
+import space.bench.SpaceOps;
+
+/**
+ * <p>Title: SpaceDriver </p>
+ * <p>Description: Runs the operations of the benchmarks on a SpaceServer
+ * in process, without RMI. The entries have 1, 4 or 8 public fields, and
+ * are written as a sub-class 0 to 3 levels under the class of the
+ * templates.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class SpaceDriver implements SpaceOps {
+
+  /** Entry classes of 1, 4 and 8 fields, and their sub-classes */
+  public static class F1 implements Entry {
+    public Integer f0;
+  }
+
+  public static class F1D1 extends F1 {}
+
+  public static class F1D2 extends F1D1 {}
+
+  public static class F1D3 extends F1D2 {}
+
+  public static class F4 implements Entry {
+    public Integer f0, f1, f2, f3;
+  }
+
+  public static class F4D1 extends F4 {}
+
+  public static class F4D2 extends F4D1 {}
+
+  public static class F4D3 extends F4D2 {}
+
+  public static class F8 implements Entry {
+    public Integer f0, f1, f2, f3, f4, f5, f6, f7;
+  }
+
+  public static class F8D1 extends F8 {}
+
+  public static class F8D2 extends F8D1 {}
+
+  public static class F8D3 extends F8D2 {}
+
+  /** Lease of the written entries, in minutes */
+  private static final Integer LEASE = Integer.valueOf(60);
+
+  /** Entries written or taken at once by fill and drain */
+  private static final int BATCH = 10000;
+
+  private SpaceServer space;
+  private int cardinality;
+
+  /** The class of the templates, and of the written entries */
+  private Constructor templateClass;
+  private Constructor entryClass;
+
+  /** The public fields of the entry class */
+  private Field[] entryFields;
+
+  /** The first field, looked up by the templates */
+  private Field key;
+
+  public void start(int fields, int cardinality, int depth) throws Exception {
+    String name = SpaceDriver.class.getName() + "$F" + fields;
+    Class template = Class.forName(name);
+    Class entry = depth == 0 ? template : Class.forName(name + "D" + depth);
+    this.templateClass = template.getDeclaredConstructor(new Class[0]);
+    this.entryClass = entry.getDeclaredConstructor(new Class[0]);
+    this.entryFields = entry.getFields();
+    this.key = template.getField("f0");
+    this.cardinality = cardinality;
+
+    // an anonymous port, so benchmarks can run side by side
+    Registry r = LocateRegistry.createRegistry(0);
+    space = new SpaceServer();
+    space.init(r);
+  }
+
+  public Object newEntry(Random rnd) throws Exception {
+    Object e = entryClass.newInstance(new Object[0]);
+    for (int i = 0; i < entryFields.length; i++) {
+      entryFields[i].set(e, Integer.valueOf(rnd.nextInt(cardinality)));
+    }
+    return e;
+  }
+
+  public Object newTemplate(Random rnd) throws Exception {
+    Object t = templateClass.newInstance(new Object[0]);
+    key.set(t, Integer.valueOf(rnd.nextInt(cardinality)));
+    return t;
+  }
+
+  public void write(Object entry) throws Exception {
+    space.write( (Entry) entry, LEASE);
+  }
+
+  public Object read(Object template) throws Exception {
+    return space.read( (Entry) template);
+  }
+
+  public Object take(Object template) throws Exception {
+    return space.take( (Entry) template);
+  }
+
+  public void fill(int n, Random rnd) throws Exception {
+    Entry[] batch = new Entry[Math.min(n, BATCH)];
+    for (int written = 0; written < n; written += batch.length) {
+      for (int i = 0; i < batch.length; i++) {
+        batch[i] = (Entry) newEntry(rnd);
+      }
+      space.writeAll(batch, LEASE);
+    }
+  }
+
+  public void drain() throws Exception {
+    Entry any = (Entry) templateClass.newInstance(new Object[0]);
+    while (space.takeMultiple(any, BATCH).length > 0) {
+    }
+  }
+
+  public void register(int n) throws Exception {
+    RemoteEventListener l = new RemoteEventListener() {
+      public void notify(Entry e) {}
+    };
+    for (int i = 0; i < n; i++) {
+      Object t = templateClass.newInstance(new Object[0]);
+      key.set(t, Integer.valueOf( -1 - i));
+      space.register( (Entry) t, l);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package space.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <p>Title: SpaceBenchmark </p>
+ * <p>Description: JMH benchmarks of the core operations of a SpaceServer in
+ * process, without RMI: write, read, take, a group of readers next to
+ * writers, all with the given number of pending listeners. Every
+ * combination of the parameters runs in a JVM of its own:
+ * fields (public fields per entry), cardinality (distinct values of every
+ * field), depth (sub-classes between the template class and the written
+ * class), listeners (pending listeners that match nothing) and preload
+ * (entries written before every iteration).
+ * The entries and templates are made before the measurement, so only the
+ * space operations are timed.
+ * Run it with java -jar target/benchmarks.jar, narrow the parameters with
+ * -p fields=4 -p depth=0, change the threads with -t (write, read, take)
+ * and -tg readers,writers (mixed), get percentiles with -bm sample and
+ * JSON results with -rf json -rff results.json.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpaceBenchmark {
+
+  /** Entries and templates made by every thread before the measurement */
+  private static final int POOL = 4096;
+
+  @Param({"1", "4", "8"})
+  int fields;
+
+  @Param({"10", "10000"})
+  int cardinality;
+
+  @Param({"0", "3"})
+  int depth;
+
+  @Param({"0", "1000"})
+  int listeners;
+
+  @Param({"100000"})
+  int preload;
+
+  SpaceOps space;
+
+  @Setup(Level.Trial)
+  public void start() throws Exception {
+    space = (SpaceOps) Class.forName("SpaceDriver").getDeclaredConstructor().
+        newInstance();
+    space.start(fields, cardinality, depth);
+    space.register(listeners);
+  }
+
+  /** Every iteration starts from the preloaded entries, so the writes of
+   * the previous ones don't add up */
+  @Setup(Level.Iteration)
+  public void refill() throws Exception {
+    space.drain();
+    space.fill(preload, new Random(preload));
+  }
+
+  /** The entries and templates of a thread, used round robin */
+  @State(Scope.Thread)
+  public static class Pool {
+    Object[] entries = new Object[POOL];
+    Object[] templates = new Object[POOL];
+    int next;
+
+    @Setup(Level.Trial)
+    public void make(SpaceBenchmark b) throws Exception {
+      Random rnd = new Random(System.identityHashCode(this));
+      for (int i = 0; i < POOL; i++) {
+        entries[i] = b.space.newEntry(rnd);
+        templates[i] = b.space.newTemplate(rnd);
+      }
+    }
+
+    Object entry() {
+      return entries[next++ & (POOL - 1)];
+    }
+
+    Object template() {
+      return templates[next++ & (POOL - 1)];
+    }
+  }
+
+  /** Writers writing new entries */
+  @Benchmark
+  @Threads(4)
+  public void write(Pool p) throws Exception {
+    space.write(p.entry());
+  }
+
+  /** Readers reading by the value of the first field */
+  @Benchmark
+  @Threads(4)
+  public Object read(Pool p) throws Exception {
+    return space.read(p.template());
+  }
+
+  /** Takers taking by the value of the first field, and writing an entry
+   * back so the space keeps its size */
+  @Benchmark
+  @Threads(4)
+  public Object take(Pool p) throws Exception {
+    Object taken = space.take(p.template());
+    space.write(p.entry());
+    return taken;
+  }
+
+  /** Readers next to writers that write and take */
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(3)
+  public Object mixedRead(Pool p) throws Exception {
+    return space.read(p.template());
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public Object mixedWrite(Pool p) throws Exception {
+    space.write(p.entry());
+    return space.take(p.template());
+  }
+}
@@ -0,0 +1,41 @@
+package space.bench;
+
+import java.util.Random;
+
+/**
+ * <p>Title: SpaceOps </p>
+ * <p>Description: The operations the benchmarks run on a space. JMH can't
+ * run benchmarks of the default package, and a named package can't see
+ * the classes of the space, so the benchmarks reach it through this
+ * interface, implemented by SpaceDriver in the default package.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public interface SpaceOps {
+
+  /** Starts a space, for entries of the given number of fields, distinct
+   * values of every field and depth of the written class under the
+   * template class */
+  void start(int fields, int cardinality, int depth) throws Exception;
+
+  /** Returns an entry with random values of all the fields */
+  Object newEntry(Random rnd) throws Exception;
+
+  /** Returns a template with a random value of the first field */
+  Object newTemplate(Random rnd) throws Exception;
+
+  void write(Object entry) throws Exception;
+
+  Object read(Object template) throws Exception;
+
+  Object take(Object template) throws Exception;
+
+  /** Writes the given number of random entries */
+  void fill(int n, Random rnd) throws Exception;
+
+  /** Takes all the entries, so the space is empty */
+  void drain() throws Exception;
+
+  /** Registers the given number of listeners, whose templates match no
+   * entry */
+  void register(int n) throws Exception;
+}
@@ -0,0 +1,179 @@
+import java.lang.management.*;
+import java.rmi.registry.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * <p>Title: SpaceAllocationTest </p>
+ * <p>Description: Checks the bytes allocated by the thread of a lookup, so
+ * a change that allocates on every read or take shows up. A read that
+ * finds nothing allocates nothing, a read or take that finds an entry
+ * only a few bytes. A write of values already in the space allocates the
+ * stored object and the growth of the index tables. The work of the
+ * background threads is not counted.</p>
+ * @authors Yael Weinberg and Marcel Apfelbaum
+ */
+public class SpaceAllocationTest {
+
+  public static class Cat implements Entry {
+    public String name;
+    public Integer age;
+
+    public Cat() {
+    }
+
+    Cat(String name, Integer age) {
+      this.name = name;
+      this.age = age;
+    }
+  }
+
+  /** Operations of a measurement, after as many to warm up */
+  private static final int N = 50000;
+
+  /** The most bytes a read or take that finds an entry may allocate */
+  private static final long FOUND_BYTES = 64;
+
+  /** Distinct values of every field of the entries a write test writes */
+  private static final int VALUES = 100;
+
+  /** The most bytes a write of values already in the space may allocate:
+   * the stored object with its values and index addresses, about 170
+   * bytes, and the tables of the values it joins, which grow by doubling,
+   * less than 64 bytes a field over many writes */
+  private static final long WRITE_BYTES = 170 + 2 * 64;
+
+  private static final Integer LEASE = Integer.valueOf(10);
+
+  private static com.sun.management.ThreadMXBean threads;
+  private static SpaceServer space;
+
+  /** Keys of the entries written so far, every test writes its own */
+  private static int nextAge = 0;
+
+  @BeforeClass
+  public static void start() throws Exception {
+    threads = (com.sun.management.ThreadMXBean) ManagementFactory.
+        getThreadMXBean();
+    Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+    space = new SpaceServer();
+    space.init(LocateRegistry.createRegistry(0));
+  }
+
+  @Test
+  public void readMissAllocatesNothing() throws Exception {
+    Cat[] miss = misses(N);
+    for (int round = 0; round < 2; round++) {
+      read(miss);
+    }
+    assertEquals("bytes per read that finds nothing", 0, read(miss));
+  }
+
+  @Test
+  public void readHitAllocatesLittle() throws Exception {
+    Cat[] found = templates(write(N), N);
+    for (int round = 0; round < 2; round++) {
+      read(found);
+    }
+    long bytes = read(found);
+    assertTrue("bytes per read that finds an entry: " + bytes,
+               bytes <= FOUND_BYTES);
+  }
+
+  @Test
+  public void takeAllocatesLittle() throws Exception {
+    for (int round = 0; round < 2; round++) {
+      take(templates(write(N), N));
+    }
+    Cat[] found = templates(write(N), N);
+    long bytes = take(found);
+    assertTrue("bytes per take that finds an entry: " + bytes,
+               bytes <= FOUND_BYTES);
+  }
+
+  @Test
+  public void writeAllocatesStoredObjectOnly() throws Exception {
+    write(entries("warm", N));
+    Cat[] cats = entries("cat", N);
+    long bytes = write(cats);
+    assertTrue("bytes per write of values in the space: " + bytes,
+               bytes <= WRITE_BYTES);
+  }
+
+  /** Writes n entries of new ages, returns the first */
+  private static int write(int n) throws Exception {
+    int first = nextAge;
+    for (int i = 0; i < n; i++) {
+      space.write(new Cat("c" + (i % 100), Integer.valueOf(nextAge++)), LEASE);
+    }
+    return first;
+  }
+
+  /** Returns templates of n ages from the given one */
+  private static Cat[] templates(int first, int n) {
+    Cat[] templates = new Cat[n];
+    for (int i = 0; i < n; i++) {
+      templates[i] = new Cat(null, Integer.valueOf(first + i));
+    }
+    return templates;
+  }
+
+  /** Returns n entries of VALUES names of the given prefix and VALUES new
+   * ages. One entry of every name and age is written first, so the values
+   * are in the space before the entries are. */
+  private static Cat[] entries(String prefix, int n) throws Exception {
+    int firstAge = nextAge;
+    nextAge += VALUES;
+    for (int i = 0; i < VALUES; i++) {
+      space.write(new Cat(prefix + i, Integer.valueOf(firstAge + i)), LEASE);
+    }
+    Cat[] cats = new Cat[n];
+    for (int i = 0; i < n; i++) {
+      cats[i] = new Cat(prefix + (i % VALUES),
+                        Integer.valueOf(firstAge + i % VALUES));
+    }
+    return cats;
+  }
+
+  /** Returns templates of a name no entry has */
+  private static Cat[] misses(int n) {
+    Cat[] templates = new Cat[n];
+    for (int i = 0; i < n; i++) {
+      templates[i] = new Cat("none", null);
+    }
+    return templates;
+  }
+
+  /** Writes every entry, returns the bytes allocated per write */
+  private static long write(Cat[] entries) throws Exception {
+    long start = allocated();
+    for (int i = 0; i < entries.length; i++) {
+      space.write(entries[i], LEASE);
+    }
+    return (allocated() - start) / entries.length;
+  }
+
+  /** Reads every template, returns the bytes allocated per read */
+  private static long read(Cat[] templates) throws Exception {
+    long start = allocated();
+    for (int i = 0; i < templates.length; i++) {
+      space.read(templates[i]);
+    }
+    return (allocated() - start) / templates.length;
+  }
+
+  /** Takes every template, returns the bytes allocated per take */
+  private static long take(Cat[] templates) throws Exception {
+    long start = allocated();
+    for (int i = 0; i < templates.length; i++) {
+      assertNotNull(space.take(templates[i]));
+    }
+    return (allocated() - start) / templates.length;
+  }
+
+  private static long allocated() {
+    return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}